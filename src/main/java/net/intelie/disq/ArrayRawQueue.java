@@ -1,13 +1,29 @@
 package net.intelie.disq;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class ArrayRawQueue implements RawQueue {
-    private final byte[] memory;
+    public static final int INITIAL_SIZE = 64 * 1024;
+
+    private final int initialSize;
+    private final int maxSize;
+    //off-heap so a large fallback is no burden on the collector, it starts small and doubles up to maxSize
+    private ByteBuffer memory;
     private int begin = 0, bytes = 0, count = 0;
 
     public ArrayRawQueue(int maxSize) {
-        this.memory = new byte[maxSize];
+        this(Math.min(maxSize, INITIAL_SIZE), maxSize);
+    }
+
+    public ArrayRawQueue(int initialSize, int maxSize) {
+        this.initialSize = Math.max(0, Math.min(initialSize, maxSize));
+        this.maxSize = maxSize;
+        this.memory = ByteBuffer.allocateDirect(this.initialSize);
+    }
+
+    public synchronized int capacity() {
+        return memory.capacity();
     }
 
     @Override
@@ -32,25 +48,27 @@ public class ArrayRawQueue implements RawQueue {
 
     @Override
     public synchronized long remainingBytes() {
-        return memory.length - bytes;
+        return maxSize - bytes;
     }
 
     @Override
     public synchronized long remainingCount() {
-        if (count() == 0) return memory.length / 4;
+        if (count() == 0) return maxSize / 4;
         return (long) (remainingBytes() / (bytes() / (double) count()));
     }
 
     @Override
     public synchronized void clear() {
         begin = count = bytes = 0;
+        if (memory.capacity() > initialSize)
+            memory = ByteBuffer.allocateDirect(initialSize);
     }
 
     @Override
     public synchronized boolean pop(Buffer buffer) throws IOException {
         if (!peek(buffer)) return false;
         int read = 4 + buffer.count();
-        begin = (begin + read) % memory.length;
+        begin = (begin + read) % memory.capacity();
         bytes -= read;
         count--;
         return true;
@@ -62,38 +80,49 @@ public class ArrayRawQueue implements RawQueue {
         int size = readInt();
         buffer.setCount(size, false);
 
-        int myBegin = (begin + 4) % memory.length;
-        int firstSize = Math.min(memory.length - myBegin, size);
-        System.arraycopy(memory, myBegin, buffer.buf(), 0, firstSize);
-
-        if (firstSize < size)
-            System.arraycopy(memory, 0, buffer.buf(), firstSize, size - firstSize);
-
+        read((begin + 4) % memory.capacity(), buffer.buf(), 0, size);
         return true;
     }
 
+    @Override
+    public synchronized int drainTo(BufferList target, int maxCount, long maxBytes) throws IOException {
+        int drained = 0;
+        long bytes = 0;
+        while (drained < maxCount && bytes < maxBytes && this.bytes > 0) {
+            Buffer buffer = target.add();
+            pop(buffer);
+            bytes += buffer.count();
+            drained++;
+        }
+        return drained;
+    }
+
     @Override
     public synchronized void push(Buffer buffer) {
         int size = buffer.count();
-        while (count > 0 && this.bytes + size + 4 > memory.length) {
+        if (this.bytes + size + 4 > memory.capacity() && memory.capacity() < maxSize)
+            grow(this.bytes + size + 4);
+        while (count > 0 && this.bytes + size + 4 > memory.capacity()) {
             int oldSize = readInt();
-            begin = (begin + 4 + oldSize) % memory.length;
+            begin = (begin + 4 + oldSize) % memory.capacity();
             bytes -= 4 + oldSize;
             count--;
         }
-        if (this.bytes + size + 4 > memory.length) return;
+        if (this.bytes + size + 4 > memory.capacity()) return;
 
         writeInt(size);
-        int myBegin = (begin + this.bytes + 4) % memory.length;
-        int firstSize = Math.min(memory.length - myBegin, size);
-        System.arraycopy(buffer.buf(), 0, memory, myBegin, firstSize);
-        if (firstSize < size)
-            System.arraycopy(buffer.buf(), firstSize, memory, 0, size - firstSize);
+        write((begin + this.bytes + 4) % memory.capacity(), buffer.buf(), 0, size);
 
         bytes += 4 + buffer.count();
         count++;
     }
 
+    @Override
+    public synchronized void pushBatch(BufferList batch) {
+        for (int i = 0; i < batch.size(); i++)
+            push(batch.get(i));
+    }
+
     @Override
     public void flush() {
 
@@ -104,19 +133,65 @@ public class ArrayRawQueue implements RawQueue {
 
     }
 
+    private void grow(long needed) {
+        long capacity = Math.max(memory.capacity(), 1);
+        while (capacity < needed)
+            capacity *= 2;
+        ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, maxSize));
+        read(begin, grown, bytes);
+        memory = grown;
+        begin = 0;
+    }
+
     private int readInt() {
+        if (begin + 4 <= memory.capacity())
+            return memory.getInt(begin);
         int ret = 0;
         for (int i = 0; i < 4; i++) {
             ret <<= 8;
-            ret |= (int) memory[(begin + i) % memory.length] & 0xFF;
+            ret |= (int) memory.get((begin + i) % memory.capacity()) & 0xFF;
         }
         return ret;
     }
 
     private void writeInt(int value) {
+        int start = (begin + this.bytes) % memory.capacity();
+        if (start + 4 <= memory.capacity()) {
+            memory.putInt(start, value);
+            return;
+        }
         for (int i = 0; i < 4; i++) {
-            memory[(begin + this.bytes + 3 - i) % memory.length] = (byte) (value & 0xFF);
+            memory.put((start + 3 - i) % memory.capacity(), (byte) (value & 0xFF));
             value >>= 8;
         }
     }
+
+    private void read(int start, byte[] target, int offset, int size) {
+        int firstSize = Math.min(memory.capacity() - start, size);
+        memory.position(start);
+        memory.get(target, offset, firstSize);
+        if (firstSize < size) {
+            memory.position(0);
+            memory.get(target, offset + firstSize, size - firstSize);
+        }
+    }
+
+    private void read(int start, ByteBuffer target, int size) {
+        int firstSize = Math.min(memory.capacity() - start, size);
+        memory.limit(start + firstSize).position(start);
+        target.put(memory);
+        memory.limit(size - firstSize).position(0);
+        target.put(memory);
+        memory.clear();
+    }
+
+    private void write(int start, byte[] source, int offset, int size) {
+        int firstSize = Math.min(memory.capacity() - start, size);
+        memory.position(start);
+        memory.put(source, offset, firstSize);
+        if (firstSize < size) {
+            memory.position(0);
+            memory.put(source, offset + firstSize, size - firstSize);
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package net.intelie.disq;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public abstract class BackgroundIo {
+    //a single thread keeps tasks in submission order, which queues rely on
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new DaemonThreadFactory("disq-io-%d"));
+    //long rewrites run apart, so they never delay reclaims or pre-opened writers
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(new DaemonThreadFactory("disq-compactor-%d"));
+    //each queue reads ahead on its own thread, so a slow disk under one queue does not hold back the others
+    private static final ExecutorService READ_AHEAD = Executors.newCachedThreadPool(new DaemonThreadFactory("disq-read-ahead-%d"));
+    //write-behind tasks run while their ring holds records, at most one per queue
+    private static final ExecutorService WRITE_BEHIND = Executors.newCachedThreadPool(new DaemonThreadFactory("disq-write-behind-%d"));
+    //retries moving fallback records back to disk, tasks are short and mostly waiting for their delay
+    private static final ScheduledExecutorService RECOVERY = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("disq-recovery-%d"));
+
+    public static Future<?> submit(Runnable task) {
+        return EXECUTOR.submit(task);
+    }
+
+    public static <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    public static <T> Future<T> submitCompaction(Callable<T> task) {
+        return COMPACTOR.submit(task);
+    }
+
+    public static void submitReadAhead(Runnable task) {
+        READ_AHEAD.execute(task);
+    }
+
+    public static void submitWriteBehind(Runnable task) {
+        WRITE_BEHIND.execute(task);
+    }
+
+    public static void scheduleRecovery(Runnable task, long delayMs) {
+        RECOVERY.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final ThreadFactory factory;
+
+        public DaemonThreadFactory(String format) {
+            this.factory = new NamedThreadFactory(format);
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = factory.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package net.intelie.disq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BufferList {
+    private final List<Buffer> buffers = new ArrayList<>();
+    private final int initialCapacity;
+    private final int maxCapacity;
+    private int size;
+
+    public BufferList() {
+        this(32, -1);
+    }
+
+    public BufferList(int initialCapacity, int maxCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.maxCapacity = maxCapacity;
+    }
+
+    public Buffer add() {
+        if (size == buffers.size())
+            buffers.add(new Buffer(initialCapacity, maxCapacity));
+        Buffer buffer = buffers.get(size++);
+        buffer.clear();
+        return buffer;
+    }
+
+    public void addAll(BufferList other, int from) {
+        for (int i = from; i < other.size(); i++) {
+            Buffer source = other.get(i);
+            Buffer buffer = add();
+            buffer.setCount(source.count(), false);
+            System.arraycopy(source.buf(), 0, buffer.buf(), 0, source.count());
+        }
+    }
+
+    public void removeLast() {
+        if (size > 0)
+            size--;
+    }
+
+    public Buffer get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return buffers.get(index);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long bytes() {
+        long bytes = 0;
+        for (int i = 0; i < size; i++)
+            bytes += buffers.get(i).count();
+        return bytes;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
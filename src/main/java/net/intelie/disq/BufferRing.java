@@ -0,0 +1,95 @@
+package net.intelie.disq;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class BufferRing {
+    private final Buffer[] buffers;
+    private final Object[] acks;
+    //a slot is free for the producer claiming position p when its sequence is p, and ready to drain when it is p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final int mask;
+    private volatile long head;
+
+    public BufferRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.buffers = new Buffer[size];
+        this.acks = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            buffers[i] = new Buffer();
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return buffers.length;
+    }
+
+    public long size() {
+        return Math.max(0, tail.get() - head);
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public long offered() {
+        return tail.get();
+    }
+
+    public long drained() {
+        return head;
+    }
+
+    public boolean offer(Buffer buffer, CompletableFuture<Void> ack) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence < position)
+                return false;
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                try {
+                    Buffer slot = buffers[index];
+                    slot.setCount(buffer.count(), false);
+                    System.arraycopy(buffer.buf(), 0, slot.buf(), 0, buffer.count());
+                    acks[index] = ack;
+                    bytes.addAndGet(buffer.count());
+                } finally {
+                    sequences.lazySet(index, position + 1);
+                }
+                return true;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public int drainTo(BufferList target, List<CompletableFuture<Void>> acks, int maxCount) {
+        //single consumer, so head is only written here
+        long head = this.head;
+        int drained = 0;
+        for (; drained < maxCount; drained++, head++) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+                break;
+            Buffer slot = buffers[index];
+            Buffer copy = target.add();
+            copy.setCount(slot.count(), false);
+            System.arraycopy(slot.buf(), 0, copy.buf(), 0, slot.count());
+            bytes.addAndGet(-slot.count());
+            if (this.acks[index] != null) {
+                acks.add((CompletableFuture<Void>) this.acks[index]);
+                this.acks[index] = null;
+            }
+            sequences.lazySet(index, head + buffers.length);
+        }
+        this.head = head;
+        return drained;
+    }
+}
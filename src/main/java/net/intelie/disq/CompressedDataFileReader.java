@@ -0,0 +1,118 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class CompressedDataFileReader implements DataFileReader {
+    private final DataFileReader delegate;
+    private final Inflater inflater = new Inflater();
+    private final Buffer frame = new Buffer();
+    private byte[] block = new byte[CompressedDataFileWriter.BLOCK_SIZE];
+    private int length;
+    private int offset;
+    private int frameBytes;
+    private int skip;
+
+    public CompressedDataFileReader(DataFileReader delegate, int skip) {
+        this.delegate = delegate;
+        this.skip = skip;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return delegate.size();
+    }
+
+    @Override
+    public void limit(long end) {
+        delegate.limit(end);
+    }
+
+    @Override
+    public int read(Buffer buffer) throws IOException {
+        if (offset == length) {
+            int read = delegate.read(frame);
+            if (!load(read))
+                return copyPlain(buffer, read);
+        }
+        return next(buffer, true);
+    }
+
+    @Override
+    public int peek(Buffer buffer) throws IOException {
+        if (offset == length) {
+            int read = delegate.peek(frame);
+            if (!load(read))
+                return copyPlain(buffer, read);
+            //already inflated, this only moves the delegate past the block
+            delegate.read(frame);
+        }
+        return next(buffer, false);
+    }
+
+    private int copyPlain(Buffer buffer, int read) {
+        //records too large for a block, or written without compression, are stored as they are
+        buffer.setCount(frame.count(), false);
+        System.arraycopy(frame.buf(), 0, buffer.buf(), 0, frame.count());
+        return read;
+    }
+
+    private boolean load(int read) {
+        byte[] buf = frame.buf();
+        if (frame.count() < DataFileFormat.BLOCK_HEADER || DataFileFormat.getInt(buf, 0) != DataFileFormat.BLOCK_MARKER)
+            return false;
+        int records = DataFileFormat.getInt(buf, 4);
+        int raw = DataFileFormat.getInt(buf, 8);
+        if (records <= 0 || raw < records * DataFileWriter.OVERHEAD)
+            return false;
+        if (raw > block.length)
+            block = new byte[raw];
+
+        inflater.reset();
+        inflater.setInput(buf, DataFileFormat.BLOCK_HEADER, frame.count() - DataFileFormat.BLOCK_HEADER);
+        try {
+            int inflated = 0;
+            while (inflated < raw && !inflater.finished() && !inflater.needsInput())
+                inflated += inflater.inflate(block, inflated, raw - inflated);
+            if (inflated != raw || !inflater.finished())
+                return false;
+        } catch (DataFormatException e) {
+            return false;
+        }
+
+        length = raw;
+        offset = 0;
+        frameBytes = read;
+        //records consumed before the queue was reopened are still in the block at the stored position
+        for (; skip > 0; skip--) {
+            int next = offset + DataFileWriter.OVERHEAD + DataFileFormat.getInt(block, offset);
+            if (next <= offset || next >= length) break;
+            offset = next;
+        }
+        skip = 0;
+        return true;
+    }
+
+    private int next(Buffer buffer, boolean consume) throws IOException {
+        int size = DataFileFormat.getInt(block, offset);
+        if (size < 0 || offset + DataFileWriter.OVERHEAD + size > length)
+            throw new IOException("Corrupted compressed block");
+        buffer.setCount(size, false);
+        System.arraycopy(block, offset + DataFileWriter.OVERHEAD, buffer.buf(), 0, size);
+        if (!consume)
+            return DataFileWriter.OVERHEAD + size;
+        offset += DataFileWriter.OVERHEAD + size;
+        //the block bytes are reported with its last record, so the stored position stays at the block until then
+        return offset == length ? frameBytes : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delegate.close();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+public class CompressedDataFileWriter implements DataFileWriter {
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private final DataFileWriter delegate;
+    private final Deflater deflater;
+    private final byte[] block;
+    private final Buffer frame = new Buffer();
+    private int length;
+    private int records;
+
+    public CompressedDataFileWriter(DataFileWriter delegate) {
+        this(delegate, Deflater.BEST_SPEED, BLOCK_SIZE);
+    }
+
+    public CompressedDataFileWriter(DataFileWriter delegate, int level, int blockSize) {
+        this.delegate = delegate;
+        this.deflater = new Deflater(level);
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public int write(Buffer buffer) throws IOException {
+        //returns only the bytes that reached the delegate, buffered records are accounted when their block is written
+        int size = buffer.count();
+        int written = 0;
+        if (length + DataFileWriter.OVERHEAD + size > block.length)
+            written += writeBlock();
+        if (DataFileWriter.OVERHEAD + size > block.length)
+            return written + delegate.write(buffer);
+
+        DataFileFormat.putInt(block, length, size);
+        System.arraycopy(buffer.buf(), 0, block, length + DataFileWriter.OVERHEAD, size);
+        length += DataFileWriter.OVERHEAD + size;
+        records++;
+        return written;
+    }
+
+    public int boundWith(int size) {
+        //worst case the delegate receives for the block still filling once a record of this size is added
+        if (length + DataFileWriter.OVERHEAD + size > block.length)
+            return bound(length) + bound(DataFileWriter.OVERHEAD + size);
+        return bound(length + DataFileWriter.OVERHEAD + size);
+    }
+
+    public static int bound(int raw) {
+        //incompressible input is stored in deflate blocks of 5 extra bytes per 16K, plus the zlib header and trailer
+        if (raw == 0) return 0;
+        return DataFileFormat.BLOCK_HEADER + raw + 5 * (raw / 16383 + 1) + 6;
+    }
+
+    private int writeBlock() throws IOException {
+        if (records == 0) return 0;
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+
+        int offset = DataFileFormat.BLOCK_HEADER;
+        frame.setCount(offset + length / 2, false);
+        while (!deflater.finished()) {
+            if (offset == frame.count())
+                frame.setCount(offset * 2, true);
+            offset += deflater.deflate(frame.buf(), offset, frame.count() - offset);
+        }
+        frame.setCount(offset, true);
+        DataFileFormat.putInt(frame.buf(), 0, DataFileFormat.BLOCK_MARKER);
+        DataFileFormat.putInt(frame.buf(), 4, records);
+        DataFileFormat.putInt(frame.buf(), 8, length);
+
+        int written = delegate.write(frame);
+        length = 0;
+        records = 0;
+        return written;
+    }
+
+    @Override
+    public long position() {
+        return delegate.position();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        delegate.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+        } finally {
+            deflater.end();
+            delegate.close();
+        }
+    }
+}
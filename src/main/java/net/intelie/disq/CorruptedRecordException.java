@@ -0,0 +1,18 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+
+public class CorruptedRecordException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long skipped;
+
+    public CorruptedRecordException(long position, long skipped) {
+        super("Corrupted record at position " + position + ", skipped " + skipped + " bytes");
+        this.skipped = skipped;
+    }
+
+    public long skipped() {
+        return skipped;
+    }
+}
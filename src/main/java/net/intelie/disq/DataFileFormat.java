@@ -0,0 +1,205 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+public abstract class DataFileFormat {
+    //negative, so it can never be mistaken by the size of a plain record
+    public static final int SYNC_MARKER = 0xD15CC0DE;
+    public static final int CHECKSUMMED_OVERHEAD = 12;
+    //payload of a record holding a compressed block: marker, record count, raw length, deflated records
+    public static final int BLOCK_MARKER = 0xD15CB10C;
+    public static final int BLOCK_HEADER = 12;
+
+    public static final int SCAN_CHUNK = 64 * 1024;
+    private static final byte[] ZEROS = new byte[1024 * 1024];
+    private static final MethodHandle CRC32C = findCrc32c();
+
+    public static int overhead(boolean checksummed) {
+        return checksummed ? CHECKSUMMED_OVERHEAD : DataFileWriter.OVERHEAD;
+    }
+
+    public static Checksum newChecksum() {
+        if (CRC32C != null) {
+            try {
+                return (Checksum) CRC32C.invoke();
+            } catch (Throwable ignored) {
+            }
+        }
+        return new PureCrc32c();
+    }
+
+    public static int checksum(Checksum checksum, int size, byte[] buf, int offset) {
+        startChecksum(checksum, size);
+        checksum.update(buf, offset, size);
+        return (int) checksum.getValue();
+    }
+
+    private static void startChecksum(Checksum checksum, int size) {
+        checksum.reset();
+        checksum.update(size >>> 24);
+        checksum.update(size >>> 16);
+        checksum.update(size >>> 8);
+        checksum.update(size);
+    }
+
+    public static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    public static int getInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 | (buf[offset + 2] & 0xFF) << 8 | buf[offset + 3] & 0xFF;
+    }
+
+    public static boolean isChecksummed(FileChannel channel) throws IOException {
+        ByteBuffer first = ByteBuffer.allocate(4);
+        while (first.hasRemaining())
+            if (channel.read(first, first.position()) < 0)
+                return false;
+        return first.getInt(0) == SYNC_MARKER;
+    }
+
+    public static long findNextRecord(FileChannel channel, long from, long end, Checksum checksum) throws IOException {
+        //bytes past the read limit may be left by an older use of a recycled file, and can hold valid records
+        long size = Math.min(end, channel.size());
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK);
+        ByteBuffer scratch = ByteBuffer.allocate(SCAN_CHUNK);
+        for (long start = from; start + CHECKSUMMED_OVERHEAD <= size; start += SCAN_CHUNK - 3) {
+            chunk.clear();
+            readFully(channel, chunk, start, (int) Math.min(SCAN_CHUNK, size - start));
+            for (int i = 0; i + 4 <= chunk.limit(); i++) {
+                if (chunk.getInt(i) == SYNC_MARKER && isValidRecord(channel, start + i, size, checksum, scratch))
+                    return start + i;
+            }
+        }
+        return size;
+    }
+
+    public static void allocate(FileChannel channel, long from, long to) throws IOException {
+        //zeros are really written, so the blocks are reserved now and a full device fails here instead of on append;
+        //they are not forced, the bytes past the read limit are never read
+        ByteBuffer zeros = ByteBuffer.wrap(ZEROS);
+        for (long position = from; position < to; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZEROS.length, to - position));
+            position += channel.write(zeros, position);
+        }
+    }
+
+    public static int countRecords(Path file, long from, long end, boolean blocks) throws IOException {
+        //walks the checksummed records left after a resynchronization, a compressed block holds several of them
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Checksum checksum = newChecksum();
+            end = Math.min(end, channel.size());
+            ByteBuffer header = ByteBuffer.allocate(CHECKSUMMED_OVERHEAD + BLOCK_HEADER);
+            ByteBuffer scratch = ByteBuffer.allocate(SCAN_CHUNK);
+            int count = 0;
+            long position = from;
+            while (position + CHECKSUMMED_OVERHEAD <= end) {
+                if (!isValidRecord(channel, position, end, checksum, scratch)) {
+                    position = findNextRecord(channel, position + 1, end, checksum);
+                    continue;
+                }
+                header.clear();
+                readFully(channel, header, position, (int) Math.min(header.capacity(), end - position));
+                int size = header.getInt(4);
+                if (blocks && size >= BLOCK_HEADER && header.getInt(CHECKSUMMED_OVERHEAD) == BLOCK_MARKER)
+                    count += Math.max(1, header.getInt(CHECKSUMMED_OVERHEAD + 4));
+                else
+                    count++;
+                position += CHECKSUMMED_OVERHEAD + size;
+            }
+            return count;
+        }
+    }
+
+    public static boolean isValidRecord(FileChannel channel, long position, long end, Checksum checksum, ByteBuffer scratch) throws IOException {
+        //the payload is checked through the scratch buffer a chunk at a time, a damaged size never sizes an allocation
+        if (position + CHECKSUMMED_OVERHEAD > end) return false;
+        scratch.clear();
+        readFully(channel, scratch, position, CHECKSUMMED_OVERHEAD);
+        if (scratch.limit() < CHECKSUMMED_OVERHEAD || scratch.getInt(0) != SYNC_MARKER) return false;
+        int size = scratch.getInt(4);
+        int expected = scratch.getInt(8);
+        if (size < 0 || size > end - position - CHECKSUMMED_OVERHEAD) return false;
+
+        startChecksum(checksum, size);
+        for (long offset = position + CHECKSUMMED_OVERHEAD, left = size; left > 0; ) {
+            scratch.clear();
+            readFully(channel, scratch, offset, (int) Math.min(scratch.capacity(), left));
+            if (scratch.limit() == 0) return false;
+            checksum.update(scratch.array(), 0, scratch.limit());
+            offset += scratch.limit();
+            left -= scratch.limit();
+        }
+        return (int) checksum.getValue() == expected;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+        buffer.limit(buffer.position());
+    }
+
+    private static MethodHandle findCrc32c() {
+        try {
+            //java.util.zip.CRC32C is hardware-accelerated, but only available on Java 9+
+            Class<?> clazz = Class.forName("java.util.zip.CRC32C");
+            return MethodHandles.publicLookup().findConstructor(clazz, MethodType.methodType(void.class));
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    static class PureCrc32c implements Checksum {
+        private static final int[] TABLE = makeTable();
+        private int crc = 0xFFFFFFFF;
+
+        private static int[] makeTable() {
+            int[] table = new int[256];
+            for (int i = 0; i < 256; i++) {
+                int value = i;
+                for (int j = 0; j < 8; j++)
+                    value = (value & 1) != 0 ? (value >>> 1) ^ 0x82F63B78 : value >>> 1;
+                table[i] = value;
+            }
+            return table;
+        }
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int value = crc;
+            for (int i = off; i < off + len; i++)
+                value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xFF];
+            crc = value;
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -1,40 +1,16 @@
 package net.intelie.disq;
 
-import java.io.*;
-import java.nio.file.Path;
+import java.io.Closeable;
+import java.io.IOException;
 
-public class DataFileWriter implements Closeable {
-    public static final int OVERHEAD = 4;
-    private final DataOutputStream stream;
-    private final FileOutputStream fos;
-    private final File file;
+public interface DataFileWriter extends Closeable {
+    int OVERHEAD = 4;
 
-    public DataFileWriter(Path file, long position) throws IOException {
-        this.file = file.toFile();
-        setLength(this.file, position);
-        fos = new FileOutputStream(this.file, true);
-        stream = new DataOutputStream(new BufferedOutputStream(fos, 1024 * 1024));
-    }
+    int write(Buffer buffer) throws IOException;
 
-    private void setLength(File file, long size) throws IOException {
-        RandomAccessFile rand = new RandomAccessFile(file, "rws");
-        rand.setLength(size);
-        rand.close();
-    }
+    long position();
 
-    public int write(Buffer buffer) throws IOException {
-        stream.writeInt(buffer.count());
-        stream.write(buffer.buf(), 0, buffer.count());
-        //stream.flush();
-        return buffer.count() + OVERHEAD;
-    }
+    void flush() throws IOException;
 
-    public void flush() throws IOException {
-        stream.flush();
-    }
-
-    @Override
-    public void close() throws IOException {
-        stream.close();
-    }
+    void sync() throws IOException;
 }
@@ -0,0 +1,36 @@
+package net.intelie.disq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public abstract class DirectBufferPool {
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    public static final int MAX_IDLE = 16;
+
+    private static final ArrayDeque<ByteBuffer> IDLE = new ArrayDeque<>();
+
+    public static ByteBuffer acquire() {
+        synchronized (IDLE) {
+            ByteBuffer buffer = IDLE.poll();
+            if (buffer != null)
+                return buffer;
+        }
+        //aligned, so the same buffers serve direct I/O
+        return DirectIo.allocate(BUFFER_SIZE);
+    }
+
+    public static void release(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (IDLE) {
+            //beyond this, buffers are left for the collector to free
+            if (IDLE.size() < MAX_IDLE)
+                IDLE.push(buffer);
+        }
+    }
+
+    public static int idle() {
+        synchronized (IDLE) {
+            return IDLE.size();
+        }
+    }
+}
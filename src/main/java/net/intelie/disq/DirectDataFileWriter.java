@@ -0,0 +1,125 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+public class DirectDataFileWriter implements DataFileWriter {
+    private final FileChannel channel;
+    private final boolean checksummed;
+    private final Checksum checksum;
+    private final boolean preallocate;
+    //buffer index 0 is at the block-aligned file offset base, bytes before flushed are on disk
+    private ByteBuffer buffer;
+    private long base;
+    private int flushed;
+
+    public DirectDataFileWriter(Path file, long position, long limit, boolean checksummed, boolean preallocate) throws IOException {
+        boolean empty = StreamDataFileWriter.setLength(file.toFile(), position, preallocate ? limit : 0);
+        this.checksummed = empty ? checksummed : StreamDataFileWriter.isChecksummed(file.toFile());
+        this.checksum = this.checksummed ? DataFileFormat.newChecksum() : null;
+        this.preallocate = preallocate;
+        this.channel = DirectIo.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = DirectBufferPool.acquire();
+        try {
+            loadTail(position);
+        } catch (IOException e) {
+            channel.close();
+            DirectBufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    private void loadTail(long position) throws IOException {
+        //the partial block at the end is written again as a whole, so it must hold what is already there
+        base = DirectIo.alignDown(position);
+        int tail = (int) (position - base);
+        if (tail > 0) {
+            buffer.limit(DirectIo.BLOCK_SIZE);
+            while (buffer.position() < tail)
+                if (channel.read(buffer, base + buffer.position()) <= 0)
+                    throw new IOException("Unable to read the last block before position " + position);
+            buffer.clear();
+        }
+        buffer.position(tail);
+        flushed = tail;
+    }
+
+    @Override
+    public int write(Buffer buffer) throws IOException {
+        int size = buffer.count();
+        ensure(DataFileFormat.CHECKSUMMED_OVERHEAD);
+        if (checksummed) {
+            this.buffer.putInt(DataFileFormat.SYNC_MARKER);
+            this.buffer.putInt(size);
+            this.buffer.putInt(DataFileFormat.checksum(checksum, size, buffer.buf(), 0));
+        } else {
+            this.buffer.putInt(size);
+        }
+
+        for (int offset = 0; offset < size; ) {
+            ensure(1);
+            int chunk = Math.min(size - offset, this.buffer.remaining());
+            this.buffer.put(buffer.buf(), offset, chunk);
+            offset += chunk;
+        }
+        return size + DataFileFormat.overhead(checksummed);
+    }
+
+    private void ensure(int needed) throws IOException {
+        if (buffer.remaining() < needed)
+            flush();
+    }
+
+    @Override
+    public long position() {
+        return base + flushed;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffer == null || buffer.position() == flushed) return;
+        int end = buffer.position();
+        int padded = (int) DirectIo.alignUp(end);
+        //stale bytes after the end would otherwise reach the disk until the file is truncated on close
+        for (int i = end; i < padded; i++)
+            buffer.put(i, (byte) 0);
+
+        buffer.limit(padded).position(0);
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer, base + buffer.position());
+        } finally {
+            buffer.limit(buffer.capacity()).position(end);
+        }
+
+        //the last partial block stays buffered, so the next flush rewrites it with the bytes that follow
+        int full = (int) DirectIo.alignDown(end);
+        buffer.limit(end).position(full);
+        buffer.compact();
+        base += full;
+        flushed = buffer.position();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) return;
+        try {
+            flush();
+            if (!preallocate)
+                channel.truncate(base + flushed);
+        } finally {
+            channel.close();
+            DirectBufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
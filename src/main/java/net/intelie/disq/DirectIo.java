@@ -0,0 +1,70 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public abstract class DirectIo {
+    //a multiple of the logical block size of the devices we run on, offsets, lengths and memory are aligned to it
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final OpenOption DIRECT = findDirectOption();
+    private static final MethodHandle ALIGNED_SLICE = findAlignedSlice();
+
+    public static boolean isSupported() {
+        return DIRECT != null && ALIGNED_SLICE != null;
+    }
+
+    public static FileChannel open(Path file, OpenOption... options) throws IOException {
+        if (!isSupported())
+            throw new IOException("Direct I/O is not supported by this JVM");
+        OpenOption[] all = Arrays.copyOf(options, options.length + 1);
+        all[options.length] = DIRECT;
+        return FileChannel.open(file, all);
+    }
+
+    public static ByteBuffer allocate(int capacity) {
+        if (ALIGNED_SLICE == null)
+            return ByteBuffer.allocateDirect(capacity);
+        try {
+            return (ByteBuffer) ALIGNED_SLICE.invoke(ByteBuffer.allocateDirect(capacity + BLOCK_SIZE), BLOCK_SIZE);
+        } catch (Throwable e) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    public static long alignDown(long value) {
+        return value & -BLOCK_SIZE;
+    }
+
+    public static long alignUp(long value) {
+        return alignDown(value + BLOCK_SIZE - 1);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static OpenOption findDirectOption() {
+        try {
+            //com.sun.nio.file.ExtendedOpenOption.DIRECT is only available on Java 10+
+            Class clazz = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            return (OpenOption) Enum.valueOf(clazz, "DIRECT");
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle findAlignedSlice() {
+        try {
+            //ByteBuffer.alignedSlice is only available on Java 9+
+            return MethodHandles.publicLookup().findVirtual(ByteBuffer.class, "alignedSlice",
+                    MethodType.methodType(ByteBuffer.class, int.class));
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+}
@@ -20,7 +20,9 @@ public class DiskQueueReader implements Closeable {
     private DataFileReader openReader() throws IOException {
         Path file = makeDataPath(state.getReadFile());
         if (!Files.exists(file)) return null;
-        return new DataFileReader(file, state.getReadPosition());
+        DataFileReader reader = new CompressedDataFileReader(new StreamDataFileReader(file, state.getReadPosition()), state.getReadSkip());
+        reader.limit(state.getReadLimit());
+        return reader;
     }
 
     public long bytes() {
@@ -32,11 +34,17 @@ public class DiskQueueReader implements Closeable {
     }
 
     public boolean moveNext(Buffer buffer) throws IOException {
-        if (checkReadEOF())
-            return false;
-        int read = reader.read(buffer);
-        state.addReadCount(read);
-        return true;
+        while (!checkReadEOF()) {
+            try {
+                int read = reader.read(buffer);
+                state.addReadCount(read);
+                return true;
+            } catch (CorruptedRecordException e) {
+                long resumed = state.getReadPosition() + e.skipped();
+                state.skipCorrupted(e.skipped(), DataFileFormat.countRecords(makeDataPath(state.getReadFile()), resumed, state.getReadLimit(), true));
+            }
+        }
+        return false;
     }
 
     private Path makeDataPath(int state) {
@@ -51,7 +59,7 @@ public class DiskQueueReader implements Closeable {
     }
 
     private boolean maybeAdvanceFile() throws IOException {
-        state.advanceReadFile(reader.size());
+        state.advanceReadFile(state.getFileBytes(state.getReadFile(), reader.size()));
         reader.close();
         reader = openReader();
         return reader != null;
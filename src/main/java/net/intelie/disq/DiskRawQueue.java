@@ -4,47 +4,134 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DiskRawQueue implements RawQueue {
     public static final int FAILED_READ_THRESHOLD = 64;
+    private static final int POPPED = 1, EMPTY = 0, UNFLUSHED = -1;
+    public static final int COMPACTION_SLOTS = 4;
     private static final Logger LOGGER = LoggerFactory.getLogger(DiskRawQueue.class);
     private final long maxSize;
     private final long dataFileLimit;
+    private final int maxFiles;
     private final boolean flushOnRead;
     private final boolean flushOnWrite;
+    private final StorageMode storageMode;
+    private final boolean fsync;
+    private final boolean checksum;
+    private final boolean preallocate;
+    private final boolean compression;
+    private final int recycledSegments;
+    private final ArrayDeque<Path> spares = new ArrayDeque<>();
+    private final boolean backgroundReclaim;
+    private final Map<Path, Future<?>> pendingReclaims = new HashMap<>();
+    private final boolean preopenNextSegment;
+    private final boolean backgroundCompaction;
+    private final int readAhead;
+    private final long readAheadBytes;
+    private final BitSet compacted = new BitSet();
+    private final boolean reservedAppends;
+    private final ArrayDeque<MappedDataFileWriter.Reservation> reservations = new ArrayDeque<>();
+    private final HotTailCache hotTail;
+    private final Object commitLock = new Object();
+    //producers and consumers only meet at the state file, anything replacing both sides takes write then read
+    private final Object writeLock = new Object();
+    private final Object readLock = new Object();
+    private final AtomicLong flushCount = new AtomicLong();
 
     private boolean temp;
     private Path directory;
-    private boolean closed = false;
-    private StateFile state;
+    private volatile boolean closed = false;
+    private volatile StateFile state;
     private DataFileReader reader;
+    private Buffer[] readAheadSlots;
     private DataFileWriter writer;
-    private int failedReads = 0;
-    private long flushCount = 0;
+    private Future<DataFileWriter> nextWriter;
+    private int nextWriterFile;
+    private SegmentCompactor compactor;
+    private volatile Future<Boolean> compaction;
+    private int compactingFile;
+    private volatile int failedReads = 0;
+    private long syncCount = 0;
+    //guarded by writeLock, tells a commit whether the writer it is forcing was closed by a rotation
+    private long rotations = 0;
+    private long commitRequests = 0;
+    private long committed = 0;
+    private boolean committing = false;
 
     public DiskRawQueue(Path directory, long maxSize) {
         this(directory, maxSize, true, true);
     }
 
     public DiskRawQueue(Path directory, long maxSize, boolean flushOnPop, boolean flushOnPush) {
+        this(directory, maxSize, new DiskRawQueueOptions().setFlushOnPop(flushOnPop).setFlushOnPush(flushOnPush));
+    }
+
+    public DiskRawQueue(Path directory, long maxSize, DiskRawQueueOptions options) {
         this.directory = directory;
-        this.maxSize = Math.max(Math.min(maxSize, StateFile.MAX_QUEUE_SIZE), StateFile.MIN_QUEUE_SIZE);
-        this.dataFileLimit = Math.max(512, this.maxSize / StateFile.MAX_FILES + (this.maxSize % StateFile.MAX_FILES > 0 ? 1 : 0));
+        //compacted segments hold fewer bytes, so more of them must fit before maxSize is what limits the queue
+        int slots = options.backgroundCompaction() ? COMPACTION_SLOTS : 1;
+        if (options.segmentSize() > 0) {
+            this.maxSize = Math.max(Math.min(maxSize, StateFile.MAX_SEGMENTS * (long) Integer.MAX_VALUE), StateFile.MIN_FILES * 512);
+            long segmentSize = Math.min(Math.max(512, options.segmentSize()), Integer.MAX_VALUE);
+            int files = (int) Math.min(Math.max(StateFile.MIN_FILES, divideCeil(this.maxSize, segmentSize)), StateFile.MAX_SEGMENTS);
+            this.maxFiles = Math.min(files * slots, StateFile.MAX_SEGMENTS);
+            this.dataFileLimit = Math.max(segmentSize, divideCeil(this.maxSize, files));
+        } else {
+            this.maxSize = Math.max(Math.min(maxSize, StateFile.MAX_QUEUE_SIZE), StateFile.MIN_QUEUE_SIZE);
+            this.maxFiles = StateFile.MAX_FILES * slots;
+            this.dataFileLimit = Math.max(512, divideCeil(this.maxSize, StateFile.MAX_FILES));
+        }
 
-        this.flushOnRead = flushOnPop;
-        this.flushOnWrite = flushOnPush;
+        this.flushOnRead = options.flushOnPop();
+        this.flushOnWrite = options.flushOnPush();
+        this.storageMode = options.storageMode();
+        this.fsync = options.fsync();
+        this.checksum = options.checksum();
+        this.preallocate = options.preallocate();
+        this.recycledSegments = options.recycledSegments();
+        this.backgroundReclaim = options.backgroundReclaim();
+        this.preopenNextSegment = options.preopenNextSegment();
+        this.compression = options.compression();
+        this.backgroundCompaction = options.backgroundCompaction();
+        this.readAhead = options.readAhead();
+        this.readAheadBytes = options.readAheadBytes();
+        this.reservedAppends = options.concurrentAppends() && storageMode == StorageMode.MAPPED && checksum && !compression;
+        //compressed and compacted files no longer hold one record at each position
+        this.hotTail = options.hotTailBytes() > 0 && !compression && !backgroundCompaction ? new HotTailCache(options.hotTailBytes()) : null;
         this.temp = false;
 
         reopen();
     }
 
+    private static long divideCeil(long value, long divisor) {
+        return value / divisor + (value % divisor > 0 ? 1 : 0);
+    }
+
     @Override
-    public synchronized void reopen() {
-        internalClose();
-        closed = false;
+    public void reopen() {
+        synchronized (writeLock) {
+            quietlyAwaitReservations();
+            synchronized (readLock) {
+                internalClose();
+                closed = false;
+            }
+        }
     }
 
     public Path path() {
@@ -58,25 +145,40 @@ public class DiskRawQueue implements RawQueue {
             this.temp = true;
         }
         Files.createDirectories(this.directory);
-        this.state = new StateFile(this.directory.resolve("state"), false);
+        this.state = new StateFile(this.directory.resolve("state"), false, maxFiles);
+        if (preallocate)
+            this.state.keepFileEnds();
         this.writer = null;
         this.reader = null;
         gc();
     }
 
-    private synchronized boolean safeTouch() {
+    private StateFile safeTouch() {
         try {
             touch();
-            return true;
+            return state;
         } catch (Throwable e) {
-            return false;
+            return null;
         }
     }
 
-    public synchronized void touch() throws IOException {
+    public void touch() throws IOException {
         checkNotClosed();
-        if (state == null)
-            internalOpen();
+        if (state == null) {
+            synchronized (writeLock) {
+                synchronized (readLock) {
+                    checkNotClosed();
+                    if (state == null)
+                        internalOpen();
+                }
+            }
+        }
+        if (compaction != null && compaction.isDone()) {
+            synchronized (readLock) {
+                if (compaction != null && compaction.isDone())
+                    finishCompaction();
+            }
+        }
     }
 
     private void checkNotClosed() {
@@ -85,70 +187,176 @@ public class DiskRawQueue implements RawQueue {
     }
 
     @Override
-    public synchronized long bytes() {
-        if (!safeTouch()) return 0;
-        return state.getBytes();
+    public long bytes() {
+        StateFile state = safeTouch();
+        return state != null ? state.getBytes() : 0;
     }
 
     @Override
-    public synchronized long count() {
-        if (!safeTouch()) return 0;
-        return state.getCount();
+    public long count() {
+        StateFile state = safeTouch();
+        return state != null ? state.getCount() : 0;
     }
 
-    public synchronized long files() {
-        if (!safeTouch()) return 0;
-        return state.getNumberOfFiles();
+    public long files() {
+        StateFile state = safeTouch();
+        return state != null ? state.getNumberOfFiles() : 0;
     }
 
     @Override
-    public synchronized long remainingBytes() {
-        if (!safeTouch()) return 0;
-        return maxSize - state.getBytes();
+    public long remainingBytes() {
+        StateFile state = safeTouch();
+        return state != null ? maxSize - state.getBytes() : 0;
+    }
+
+    public long dataFileLimit() {
+        return dataFileLimit;
     }
 
     public long flushCount() {
-        return flushCount;
+        return flushCount.get();
+    }
+
+    public long syncCount() {
+        return syncCount;
     }
 
     @Override
-    public synchronized long remainingCount() {
-        if (!safeTouch()) return 0;
+    public long remainingCount() {
+        StateFile state = safeTouch();
+        if (state == null) return 0;
+
+        long count = state.getCount();
+        long bytes = state.getBytes();
+        if (count == 0) return maxSize / 4;
+        double bytesPerElement = bytes / (double) count;
+        return (long) ((maxSize - bytes) / bytesPerElement);
+    }
 
-        if (state.getCount() == 0) return maxSize / 4;
-        double bytesPerElement = state.getBytes() / (double) state.getCount();
-        return (long) ((maxSize - state.getBytes()) / bytesPerElement);
+    @Override
+    public void clear() throws IOException {
+        synchronized (writeLock) {
+            awaitReservations();
+            synchronized (readLock) {
+                touch();
+
+                state.clear();
+                internalFlush();
+                reopen();
+            }
+        }
     }
 
     @Override
-    public synchronized void clear() throws IOException {
-        touch();
+    public boolean pop(Buffer buffer) throws IOException {
+        int popped = pop(buffer, false);
+        //the hot tail dropped the record it was expected to serve, so it is read from the file after a flush
+        if (popped == UNFLUSHED)
+            popped = pop(buffer, true);
+        return popped == POPPED;
+    }
 
-        state.clear();
-        internalFlush();
-        reopen();
+    private int pop(Buffer buffer, boolean flush) throws IOException {
+        if (!prepareRead(flush))
+            return EMPTY;
+
+        synchronized (readLock) {
+            if (state == null)
+                return EMPTY;
+
+            boolean eof = checkReadEOF();
+            int read = readCached(buffer, true);
+            if (read < 0 && eof)
+                return state.getCount() > 0 && !flush ? UNFLUSHED : EMPTY;
+            if (read < 0)
+                read = innerRead(buffer);
+            if (read < 0) {
+                if (flushOnRead)
+                    flushReads();
+                return EMPTY;
+            }
+
+            state.addReadCount(read);
+            if (flushOnRead)
+                flushReads();
+
+            checkReadEOF();
+            return POPPED;
+        }
     }
 
     @Override
-    public synchronized boolean pop(Buffer buffer) throws IOException {
-        touch();
-
-        if (!checkFailedReads())
-            return false;
+    public int drainTo(BufferList target, int maxCount, long maxBytes) throws IOException {
+        if (!prepareRead(true))
+            return 0;
+
+        synchronized (readLock) {
+            if (state == null)
+                return 0;
+
+            int drained = 0;
+            long bytes = 0;
+            //maxBytes is a soft limit: the record that crosses it is still returned, so a big record never stalls
+            while (drained < maxCount && bytes < maxBytes) {
+                boolean eof = checkReadEOF();
+                Buffer buffer = target.add();
+                int read = readCached(buffer, true);
+                if (read < 0 && eof) {
+                    target.removeLast();
+                    break;
+                }
+                try {
+                    if (read < 0)
+                        read = innerRead(buffer);
+                } catch (IOException e) {
+                    target.removeLast();
+                    if (drained == 0) throw e;
+                    break;
+                }
+                if (read < 0) {
+                    target.removeLast();
+                    break;
+                }
+                state.addReadCount(read);
+                bytes += buffer.count();
+                drained++;
+            }
 
-        if (checkReadEOF())
-            return false;
+            if (flushOnRead)
+                flushReads();
 
-        int read = innerRead(buffer);
+            checkReadEOF();
+            return drained;
+        }
+    }
 
-        state.addReadCount(read);
-        if (flushOnRead)
-            internalFlush();
+    private boolean prepareRead(boolean drain) throws IOException {
+        //runs before taking the read lock, as opening the queue or flushing the writer take the write lock first
+        touch();
+        if (failedReads >= FAILED_READ_THRESHOLD && !recoverFailedReads())
+            return false;
 
-        checkReadEOF();
+        //records still in the writer are served by the hot tail without a flush, see StateFile.flushReads
+        StateFile state = this.state;
+        if (state != null && (drain ? state.getUnflushedCount() > 0 : state.needsFlushBeforePop()) && !cachedNext(state)) {
+            synchronized (writeLock) {
+                if (this.state != null)
+                    internalFlush();
+            }
+        }
         return true;
     }
 
+    private boolean recoverFailedReads() throws IOException {
+        synchronized (writeLock) {
+            awaitReservations();
+            synchronized (readLock) {
+                touch();
+                return checkFailedReads();
+            }
+        }
+    }
+
     private boolean checkFailedReads() throws IOException {
         if (failedReads >= FAILED_READ_THRESHOLD) {
             LOGGER.info("Detected corrupted file #{}, backing up and moving on.", state.getReadFile());
@@ -163,86 +371,390 @@ public class DiskRawQueue implements RawQueue {
     }
 
     private int innerRead(Buffer buffer) throws IOException {
-        try {
-            int read = reader().read(buffer);
-            failedReads = 0;
-            return read;
-        } catch (Throwable e) {
-            failedReads++;
-            throw e;
+        while (true) {
+            try {
+                int read = reader().read(buffer);
+                failedReads = 0;
+                return read;
+            } catch (CorruptedRecordException e) {
+                LOGGER.info("Skipping corrupted record on file #{}: {}", state.getReadFile(), e.getMessage());
+                skipCorrupted(e.skipped());
+                if (checkReadEOF())
+                    return -1;
+            } catch (Throwable e) {
+                failedReads++;
+                throw e;
+            }
         }
     }
 
-    @Override
-    public synchronized boolean peek(Buffer buffer) throws IOException {
-        touch();
+    private void skipCorrupted(long skipped) throws IOException {
+        //the reader already resynchronized past the damaged bytes, recount what is left of the file from there
+        long resumed = state.getReadPosition() + skipped;
+        int remaining = DataFileFormat.countRecords(makeDataPath(state.getReadFile()), resumed, state.getReadLimit(),
+                compression || backgroundCompaction);
+        state.skipCorrupted(skipped, remaining);
+    }
 
-        if (checkReadEOF())
+    @Override
+    public boolean peek(Buffer buffer) throws IOException {
+        if (!prepareRead(false))
             return false;
 
-        reader().peek(buffer);
-        return true;
+        synchronized (readLock) {
+            if (state == null)
+                return false;
+
+            boolean eof = checkReadEOF();
+            if (readCached(buffer, false) >= 0)
+                return true;
+            if (eof)
+                return false;
+            reader().peek(buffer);
+            return true;
+        }
+    }
+
+    private boolean cachedNext(StateFile state) {
+        return hotTail != null && hotTail.contains(state.getReadFile(), state.getReadPosition());
+    }
+
+    private int readCached(Buffer buffer, boolean consume) throws IOException {
+        //with records left, the one at the read position is counted even while later reservations are pending
+        //a read-ahead reader already holds the next records in memory
+        if (hotTail == null || state.getCount() <= 0 || reader instanceof ReadAheadDataFileReader)
+            return -1;
+        int read = hotTail.take(state.getReadFile(), state.getReadPosition(), buffer, consume);
+        if (read < 0 || !consume || reader == null)
+            return read;
+        //a plain reader stays open and moves past the record, so a later miss reads on from there
+        if (reader instanceof SkippableDataFileReader) {
+            ((SkippableDataFileReader) reader).skip(read);
+        } else {
+            Lenient.safeClose(reader);
+            reader = null;
+        }
+        return read;
     }
 
     private void deleteOldestFile(boolean renameFile) throws IOException {
         int currentFile = state.getReadFile();
-        state.advanceReadFile(reader().size());
+        if (hotTail != null)
+            hotTail.discardFile(currentFile);
+        state.advanceReadFile(state.getFileBytes(currentFile, openedReader().size()));
         reader.close();
         failedReads = 0;
 
-        internalFlush();
+        flushReads();
         reader = null;
         tryDeleteFile(currentFile, renameFile);
     }
 
 
     @Override
-    public synchronized void push(Buffer buffer) throws IOException {
-        touch();
+    public void push(Buffer buffer) throws IOException {
+        long ticket = reservedAppends ? appendReserved(buffer) : append(buffer);
+        if (ticket > 0)
+            commit(ticket);
+    }
+
+    private long appendReserved(Buffer buffer) throws IOException {
+        MappedDataFileWriter.Reservation reservation;
+        synchronized (writeLock) {
+            touch();
+            checkWriteEOF();
+            deleteOldIfNeeded(buffer.count());
+
+            MappedDataFileWriter writer = (MappedDataFileWriter) writer();
+            long position = writer.position();
+            reservation = writer.reserve(buffer.count());
+            reservations.add(reservation);
+            if (hotTail != null)
+                hotTail.add(state.getWriteFile(), position, reservation.size(), buffer);
+        }
+
+        //only the copy runs outside the lock, records reach the state in the order their bytes were reserved
+        boolean copied = false;
+        try {
+            reservation.copy(buffer);
+            copied = true;
+        } finally {
+            synchronized (writeLock) {
+                if (copied) {
+                    reservation.copied = true;
+                } else {
+                    //the slot is zeroed, so readers skip it like any corrupted record and it is never counted
+                    reservation.failed = true;
+                    if (hotTail != null)
+                        hotTail.clear();
+                    try {
+                        reservation.discard();
+                    } catch (Throwable e) {
+                        LOGGER.info("Unable to discard a failed append", e);
+                    }
+                }
+                publishReservations();
+            }
+        }
+
+        synchronized (writeLock) {
+            while (!reservation.published)
+                waitWriteLock();
+            long ticket = 0;
+            if (flushOnWrite)
+                ticket = requestFlush();
+
+            checkWriteEOF();
+            return ticket;
+        }
+    }
+
+    private void publishReservations() throws IOException {
+        boolean published = false;
+        while (!reservations.isEmpty() && (reservations.peek().copied || reservations.peek().failed)) {
+            MappedDataFileWriter.Reservation reservation = reservations.poll();
+            if (reservation.copied)
+                state.addWriteCount(reservation.size());
+            else
+                state.addWrittenBytes(reservation.size());
+            reservation.published = true;
+            published = true;
+        }
+        if (published) {
+            writeLock.notifyAll();
+            maybePreopenNextWriter();
+        }
+    }
+
+    //must be called before taking the read lock, producers may need it to publish
+    private void quietlyAwaitReservations() {
+        try {
+            awaitReservations();
+        } catch (InterruptedIOException e) {
+            LOGGER.info("Interrupted while waiting for concurrent appends on close");
+        }
+    }
+
+    private void awaitReservations() throws InterruptedIOException {
+        while (!reservations.isEmpty())
+            waitWriteLock();
+    }
+
+    private void waitWriteLock() throws InterruptedIOException {
+        try {
+            writeLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for concurrent appends");
+        }
+    }
+
+    private long append(Buffer buffer) throws IOException {
+        synchronized (writeLock) {
+            touch();
+
+            appendOne(buffer);
+            long ticket = 0;
+            if (flushOnWrite)
+                ticket = requestFlush();
+
+            checkWriteEOF();
+            return ticket;
+        }
+    }
+
+    @Override
+    public void pushBatch(BufferList batch) throws IOException {
+        long ticket = appendBatch(batch);
+        try {
+            if (ticket > 0)
+                commit(ticket);
+        } catch (IOException e) {
+            throw new PartialBatchException(batch.size(), e);
+        }
+    }
+
+    private long appendBatch(BufferList batch) throws IOException {
+        synchronized (writeLock) {
+            //records are counted as they are written, a failure reports how many made it so only the rest is retried
+            int written = 0;
+            try {
+                touch();
+
+                for (; written < batch.size(); written++)
+                    appendOne(batch.get(written));
+                long ticket = 0;
+                if (flushOnWrite && batch.size() > 0)
+                    ticket = requestFlush();
+
+                checkWriteEOF();
+                return ticket;
+            } catch (IOException e) {
+                if (written == 0) throw e;
+                throw new PartialBatchException(written, e);
+            }
+        }
+    }
 
+    private void appendOne(Buffer buffer) throws IOException {
+        awaitReservations();
         checkWriteEOF();
         deleteOldIfNeeded(buffer.count());
 
+        int file = state.getWriteFile();
+        long position = state.getWritePosition();
         int written = writer().write(buffer);
         state.addWriteCount(written);
-        if (flushOnWrite)
-            internalFlush();
-
-        checkWriteEOF();
+        if (hotTail != null)
+            hotTail.add(file, position, written, buffer);
+        maybePreopenNextWriter();
     }
 
 
     private void deleteOldIfNeeded(int count) throws IOException {
-        while (!state.sameFileReadWrite() && willOverflow(count))
-            deleteOldestFile(false);
+        if (!willOverflow(count))
+            return;
+        synchronized (readLock) {
+            while (!state.sameFileReadWrite() && willOverflow(count))
+                deleteOldestFile(false);
+        }
     }
 
     @Override
-    public synchronized void flush() throws IOException {
-        touch();
+    public void flush() throws IOException {
+        long ticket;
+        synchronized (writeLock) {
+            touch();
+            ticket = requestFlush();
+        }
+        if (ticket > 0)
+            commit(ticket);
+    }
+
+    private long requestFlush() throws IOException {
+        if (fsync)
+            return ++commitRequests;
         internalFlush();
+        return 0;
+    }
+
+    private void commit(long ticket) throws IOException {
+        synchronized (commitLock) {
+            while (committing && committed < ticket)
+                waitCommit();
+            if (committed >= ticket)
+                return;
+            committing = true;
+        }
+        long target = 0;
+        try {
+            target = syncAll();
+        } finally {
+            synchronized (commitLock) {
+                committing = false;
+                committed = Math.max(committed, target);
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    private void waitCommit() throws InterruptedIOException {
+        try {
+            commitLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for commit");
+        }
+    }
+
+    private long syncAll() throws IOException {
+        long target;
+        long rotation;
+        DataFileWriter writer;
+        StateFile state;
+        synchronized (writeLock) {
+            touch();
+            target = commitRequests;
+            internalFlush();
+            writer = this.writer;
+            state = this.state;
+            rotation = rotations;
+            syncCount++;
+        }
+        //forcing outside the lock lets every push that arrives meanwhile join the next commit
+        try {
+            if (writer != null)
+                writer.sync();
+        } catch (ClosedChannelException e) {
+            //rotating files in fsync mode already forced the closed writer to the device
+            if (!fsync || !rotatedSince(rotation))
+                throw e;
+        } finally {
+            state.sync();
+        }
+        return target;
+    }
+
+    private boolean rotatedSince(long rotation) {
+        synchronized (writeLock) {
+            return rotations != rotation;
+        }
     }
 
     private void internalFlush() throws IOException {
         if (writer != null)
-            writer.flush();
+            flushWriter();
         state.flush();
-        flushCount++;
+        flushCount.incrementAndGet();
+    }
+
+    private void flushReads() throws IOException {
+        state.flushReads();
+        flushCount.incrementAndGet();
     }
 
     @Override
-    public synchronized void close() {
-        closed = true;
-        internalClose();
+    public void close() {
+        synchronized (writeLock) {
+            quietlyAwaitReservations();
+            synchronized (readLock) {
+                closed = true;
+                internalClose();
+            }
+        }
     }
 
     private void internalClose() {
+        if (fsync)
+            safeSync();
+        else
+            safeFlush();
+
+        try {
+            awaitAllReclaims();
+        } catch (InterruptedIOException e) {
+            LOGGER.info("Interrupted while waiting for file reclaims on close");
+        }
+
+        cancelCompaction();
+        compacted.clear();
+        if (hotTail != null)
+            hotTail.clear();
+
         Lenient.safeClose(reader);
         reader = null;
 
         Lenient.safeClose(writer);
         writer = null;
 
+        if (nextWriter != null) {
+            try {
+                Lenient.safeClose(awaitNextWriter());
+            } catch (InterruptedIOException e) {
+                LOGGER.info("Interrupted while waiting for next writer on close");
+            }
+        }
+
         Lenient.safeClose(state);
         state = null;
 
@@ -254,36 +766,98 @@ public class DiskRawQueue implements RawQueue {
     }
 
 
+    private void safeFlush() {
+        try {
+            if (writer != null && state != null)
+                flushWriter();
+        } catch (Throwable e) {
+            LOGGER.info("Error flushing files on close", e);
+        }
+    }
+
+    private void safeSync() {
+        try {
+            if (writer != null && state != null) {
+                flushWriter();
+                writer.sync();
+            }
+            if (state != null) {
+                state.flush();
+                state.sync();
+            }
+        } catch (Throwable e) {
+            LOGGER.info("Error syncing files on close", e);
+        }
+    }
+
     private boolean willOverflow(int count) throws IOException {
-        return bytes() + count + DataFileWriter.OVERHEAD > maxSize || files() >= StateFile.MAX_FILES;
+        return state.getBytes() + bytesFor(count) > maxSize || state.getNumberOfFiles() >= state.getMaxFiles();
+    }
+
+    private long bytesFor(int count) {
+        if (!compression)
+            return count + DataFileFormat.overhead(checksum);
+        //a compressed block still filling reaches the state only once it is written, possibly as two frames
+        int bound = writer instanceof CompressedDataFileWriter ? ((CompressedDataFileWriter) writer).boundWith(count)
+                : CompressedDataFileWriter.bound(DataFileWriter.OVERHEAD + count);
+        return bound + 2L * DataFileFormat.overhead(checksum);
     }
 
     private boolean checkReadEOF() throws IOException {
         while (!state.sameFileReadWrite() && state.readFileEof())
             deleteOldestFile(false);
-        if (state.needsFlushBeforePop())
-            internalFlush();
-        return state.getCount() == 0;
+        //records still buffered by the writer are left to the next read, which flushes them first
+        return state.getFlushedCount() <= 0;
+    }
+
+    private DataFileReader openedReader() throws IOException {
+        if (reader == null)
+            reader = openReader();
+        return reader;
     }
 
     private DataFileReader reader() throws IOException {
-        return reader != null ? reader : (reader = openReader());
+        openedReader();
+        //both leave bytes past the written end of the file, read-ahead keeps the limit set before it wraps the reader
+        if (preallocate || storageMode == StorageMode.DIRECT)
+            reader.limit(state.getReadLimit());
+        //once the writer moved on, the file holds a known number of records that can be read in the background
+        if (readAhead > 0 && !state.sameFileReadWrite() && !(reader instanceof ReadAheadDataFileReader)) {
+            if (readAheadSlots == null)
+                readAheadSlots = ReadAheadDataFileReader.newSlots(readAhead);
+            reader = new ReadAheadDataFileReader(reader, state.getFileCount(state.getReadFile()), readAheadSlots, readAheadBytes);
+        }
+        return reader;
     }
 
     private void checkWriteEOF() throws IOException {
+        if (state.getWritePosition() < dataFileLimit)
+            return;
+        //the writer is closed on rotation, so pending copies must land first, and someone else may rotate meanwhile
+        awaitReservations();
         if (state.getWritePosition() >= dataFileLimit)
             advanceWriteFile();
     }
 
     private DataFileWriter writer() throws IOException {
+        if (writer == null)
+            writer = takeNextWriter();
         return writer != null ? writer : (writer = openWriter());
     }
 
     private void advanceWriteFile() throws IOException {
-        writer().close();
+        writer();
+        flushWriter();
+        if (fsync)
+            writer.sync();
+        writer.close();
+        writer = null;
+        rotations++;
         state.advanceWriteFile();
         internalFlush();
-        writer = null;
+        synchronized (readLock) {
+            maybeCompact();
+        }
     }
 
     private void gc() throws IOException {
@@ -294,15 +868,28 @@ public class DiskRawQueue implements RawQueue {
             file = makeDataPath(state.getReadFile());
             shouldFlush = true;
         }
+        Files.deleteIfExists(directory.resolve("compacting"));
+        spares.clear();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "spare*")) {
+            for (Path path : stream) {
+                if (spares.size() < recycledSegments)
+                    spares.add(path);
+                else
+                    tryDelete(path);
+            }
+        }
+
         long totalBytes = 0;
         long totalCount = 0;
-        for (int i = 0; i < StateFile.MAX_FILES; i++) {
-            Path path = makeDataPath(i);
-            if (Files.exists(path)) {
-                if (!state.isInUse(i)) {
+        //listing the directory also collects files left behind by a layout with more segments
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "data*")) {
+            for (Path path : stream) {
+                int i = parseDataFile(path.getFileName().toString());
+                if (i < 0) continue;
+                if (i >= state.getMaxFiles() || !state.isInUse(i)) {
                     tryDeleteFile(i, false);
                 } else {
-                    totalBytes += Files.size(path);
+                    totalBytes += fileBytes(i, path);
                     totalCount += state.getFileCount(i);
                 }
             }
@@ -315,19 +902,106 @@ public class DiskRawQueue implements RawQueue {
 
     }
 
+    private long fileBytes(int file, Path path) throws IOException {
+        //the write file may hold unflushed or mapped-ahead bytes that the writer discards on open
+        long size = Files.size(path);
+        boolean isWriteFile = file == state.getWriteFile() && (state.sameFileReadWrite() || file != state.getReadFile());
+        return isWriteFile ? Math.min(size, state.getWritePosition()) : state.getFileBytes(file, size);
+    }
+
+    private static int parseDataFile(String name) {
+        if (name.length() < 6 || name.length() > 11 || !name.startsWith("data"))
+            return -1;
+        for (int i = 4; i < name.length(); i++)
+            if (Character.digit(name.charAt(i), 16) < 0)
+                return -1;
+        return Integer.parseInt(name.substring(4), 16);
+    }
+
     private void tryDeleteFile(int file, boolean renameFile) {
+        compacted.clear(file);
+        if (compactor != null && compactingFile == file)
+            compactor.cancel();
+
         Path from = makeDataPath(file);
-        try {
+        Path to = null;
+        //spares are taken by the write side, which may be opening a file meanwhile
+        synchronized (spares) {
             if (renameFile) {
-                Path to = makeCorruptedPath(file);
+                to = makeCorruptedPath(file);
                 LOGGER.info("Backing up {} as {}", from, to);
-                Files.move(from, to);
-            } else {
-                Files.delete(from);
+            } else if (spares.size() < recycledSegments) {
+                to = makeSparePath();
+                spares.add(to);
+            }
+
+            if (backgroundReclaim) {
+                //the state already moved past this file, so nothing but the writer reopening it can observe the delay
+                pendingReclaims.values().removeIf(Future::isDone);
+                Future<?> future = BackgroundIo.submit(new Reclaim(from, to));
+                pendingReclaims.put(from, future);
+                if (to != null)
+                    pendingReclaims.put(to, future);
+                return;
             }
+        }
+        new Reclaim(from, to).run();
+    }
+
+    private void awaitReclaim(Path path) throws InterruptedIOException {
+        Future<?> future;
+        synchronized (spares) {
+            future = pendingReclaims.remove(path);
+        }
+        if (future != null)
+            await(future);
+    }
+
+    private void awaitAllReclaims() throws InterruptedIOException {
+        for (Future<?> future : pendingReclaims.values())
+            await(future);
+        pendingReclaims.clear();
+    }
+
+    private static void await(Future<?> future) throws InterruptedIOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file reclaim");
+        } catch (ExecutionException e) {
+            //reclaim failures are logged by the task itself
+        }
+    }
+
+    private static void tryDelete(Path path) {
+        try {
+            Files.delete(path);
+        } catch (Exception e) {
+            LOGGER.info("Unable to delete file {}: {}", path, e.getMessage());
+            LOGGER.debug("Stacktrace", e);
+        }
+    }
+
+    private Path takeSpare(Path file) throws InterruptedIOException {
+        if (Files.exists(file))
+            return null;
+        Path spare;
+        synchronized (spares) {
+            spare = spares.poll();
+        }
+        if (spare != null)
+            awaitReclaim(spare);
+        return spare;
+    }
+
+    private static void tryReuseSpare(Path spare, Path to) {
+        try {
+            Files.move(spare, to);
         } catch (Exception e) {
-            LOGGER.info("Unable to delete file {}: {}", from, e.getMessage());
+            LOGGER.info("Unable to reuse file {}: {}", spare, e.getMessage());
             LOGGER.debug("Stacktrace", e);
+            tryDelete(spare);
         }
     }
 
@@ -335,16 +1009,178 @@ public class DiskRawQueue implements RawQueue {
         return directory.resolve(String.format((Locale) null, "data%02x", state));
     }
 
+    private Path makeSparePath() {
+        for (int i = 0; ; i++) {
+            Path path = directory.resolve(String.format((Locale) null, "spare%02x", i));
+            if (!spares.contains(path))
+                return path;
+        }
+    }
+
     private Path makeCorruptedPath(int state) {
         return directory.resolve(String.format((Locale) null, "data%02x.%d.corrupted", state, System.currentTimeMillis()));
     }
 
     private DataFileReader openReader() throws IOException {
-        return new DataFileReader(makeDataPath(state.getReadFile()), state.getReadPosition());
+        DataFileReader reader = storageMode.openReader(makeDataPath(state.getReadFile()), state.getReadPosition());
+        return compression || backgroundCompaction ? new CompressedDataFileReader(reader, state.getReadSkip()) : reader;
+    }
+
+    private void flushWriter() throws IOException {
+        writer.flush();
+        //compressed blocks are written on flush, after their records were already counted
+        if (compression)
+            state.addWrittenBytes(writer.position() - state.getWritePosition());
     }
 
     private DataFileWriter openWriter() throws IOException {
         Files.createDirectories(directory);
-        return new DataFileWriter(makeDataPath(state.getWriteFile()), state.getWritePosition());
+        Path file = makeDataPath(state.getWriteFile());
+        awaitReclaim(file);
+        Path spare = state.getWritePosition() == 0 ? takeSpare(file) : null;
+        return openWriter(file, state.getWritePosition(), spare);
+    }
+
+    private DataFileWriter openWriter(Path file, long position, Path spare) throws IOException {
+        //a recycled file is renamed into place instead of creating a new one
+        if (spare != null)
+            tryReuseSpare(spare, file);
+        DataFileWriter writer = storageMode.openWriter(file, position, dataFileLimit, checksum, preallocate);
+        return compression ? new CompressedDataFileWriter(writer) : writer;
+    }
+
+    private void maybeCompact() {
+        if (!backgroundCompaction || compaction != null)
+            return;
+        int files = state.getMaxFiles();
+        //the newest full segments are the last ones to be read
+        for (int i = (state.getWriteFile() + files - 1) % files; i != state.getReadFile() && state.isInUse(i); i = (i + files - 1) % files) {
+            if (!compacted.get(i)) {
+                compacted.set(i);
+                compactingFile = i;
+                compactor = new SegmentCompactor(makeDataPath(i), directory.resolve("compacting"), state.getFileCount(i),
+                        state.getFileBytes(i, Long.MAX_VALUE), checksum);
+                compaction = BackgroundIo.submitCompaction(compactor);
+                return;
+            }
+        }
+    }
+
+    private void finishCompaction() {
+        Path target = compactor.target();
+        try {
+            //the file may have been deleted, or started being read, since the compaction started
+            if (compaction.get() && !compactor.isCancelled() && compactingFile != state.getReadFile()) {
+                Path source = makeDataPath(compactingFile);
+                long saved = state.getFileBytes(compactingFile, Files.size(source)) - Files.size(target);
+                Files.move(target, source, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (fsync)
+                    forceDirectory();
+                state.releaseBytes(saved);
+                LOGGER.debug("Compacted file #{}, saving {} bytes", compactingFile, saved);
+            }
+        } catch (Throwable e) {
+            LOGGER.info("Unable to compact file #{}", compactingFile, e);
+        }
+        deleteCompactionTarget();
+        compactor = null;
+        compaction = null;
+        maybeCompact();
+    }
+
+    private void forceDirectory() {
+        //makes the rename durable; some platforms cannot open a directory for syncing
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to sync directory {}", directory, e);
+        }
+    }
+
+    private void cancelCompaction() {
+        if (compactor == null)
+            return;
+        compactor.cancel();
+        try {
+            compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //a cancelled compaction may fail on its way out, the original file is untouched
+        }
+        deleteCompactionTarget();
+        compactor = null;
+        compaction = null;
+    }
+
+    private void deleteCompactionTarget() {
+        try {
+            Files.deleteIfExists(compactor.target());
+        } catch (IOException e) {
+            LOGGER.info("Unable to delete file {}: {}", compactor.target(), e.getMessage());
+        }
+    }
+
+    private void maybePreopenNextWriter() throws IOException {
+        //a preallocated segment is always opened ahead, so its extension never runs on the append path
+        if (!preopenNextSegment && !preallocate || nextWriter != null || state.getWritePosition() < dataFileLimit / 2)
+            return;
+        int next = (state.getWriteFile() + 1) % state.getMaxFiles();
+        if (state.isInUse(next))
+            return;
+        Path file = makeDataPath(next);
+        Path spare = takeSpare(file);
+        //runs after any reclaim already submitted for this file, as the executor is FIFO
+        nextWriterFile = next;
+        nextWriter = BackgroundIo.submit(() -> openWriter(file, 0, spare));
+    }
+
+    private DataFileWriter takeNextWriter() throws IOException {
+        if (nextWriter == null)
+            return null;
+        DataFileWriter writer = awaitNextWriter();
+        if (writer != null && (nextWriterFile != state.getWriteFile() || state.getWritePosition() != 0)) {
+            Lenient.safeClose(writer);
+            return null;
+        }
+        return writer;
+    }
+
+    private DataFileWriter awaitNextWriter() throws InterruptedIOException {
+        Future<DataFileWriter> future = nextWriter;
+        nextWriter = null;
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for next writer");
+        } catch (ExecutionException e) {
+            LOGGER.info("Unable to open next writer ahead of time: {}", e.getCause().getMessage());
+            LOGGER.debug("Stacktrace", e);
+            return null;
+        }
+    }
+
+    private static class Reclaim implements Runnable {
+        private final Path from;
+        private final Path to;
+
+        public Reclaim(Path from, Path to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (to != null)
+                    Files.move(from, to);
+                else
+                    Files.delete(from);
+            } catch (Exception e) {
+                LOGGER.info("Unable to delete file {}: {}", from, e.getMessage());
+                LOGGER.debug("Stacktrace", e);
+            }
+        }
     }
 }
@@ -0,0 +1,169 @@
+package net.intelie.disq;
+
+public class DiskRawQueueOptions {
+    private boolean flushOnPop = true;
+    private boolean flushOnPush = true;
+    private StorageMode storageMode = StorageMode.STREAM;
+    private boolean fsync = false;
+    private boolean checksum = false;
+    private long segmentSize = 0;
+    private boolean preallocate = false;
+    private int recycledSegments = 0;
+    private boolean backgroundReclaim = false;
+    private boolean preopenNextSegment = false;
+    private boolean compression = false;
+    private boolean backgroundCompaction = false;
+    private int readAhead = 0;
+    private long readAheadBytes = 16 * 1024 * 1024;
+    private long hotTailBytes = 0;
+    private boolean concurrentAppends = false;
+
+    public boolean flushOnPop() {
+        return flushOnPop;
+    }
+
+    public DiskRawQueueOptions setFlushOnPop(boolean flushOnPop) {
+        this.flushOnPop = flushOnPop;
+        return this;
+    }
+
+    public boolean flushOnPush() {
+        return flushOnPush;
+    }
+
+    public DiskRawQueueOptions setFlushOnPush(boolean flushOnPush) {
+        this.flushOnPush = flushOnPush;
+        return this;
+    }
+
+    public boolean fsync() {
+        return fsync;
+    }
+
+    public DiskRawQueueOptions setFsync(boolean fsync) {
+        this.fsync = fsync;
+        return this;
+    }
+
+    public boolean checksum() {
+        return checksum;
+    }
+
+    public DiskRawQueueOptions setChecksum(boolean checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    public long segmentSize() {
+        return segmentSize;
+    }
+
+    public DiskRawQueueOptions setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    public boolean preallocate() {
+        return preallocate;
+    }
+
+    public DiskRawQueueOptions setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+        return this;
+    }
+
+    public int recycledSegments() {
+        return recycledSegments;
+    }
+
+    public DiskRawQueueOptions setRecycledSegments(int recycledSegments) {
+        this.recycledSegments = recycledSegments;
+        return this;
+    }
+
+    public boolean backgroundReclaim() {
+        return backgroundReclaim;
+    }
+
+    public DiskRawQueueOptions setBackgroundReclaim(boolean backgroundReclaim) {
+        this.backgroundReclaim = backgroundReclaim;
+        return this;
+    }
+
+    public boolean preopenNextSegment() {
+        return preopenNextSegment;
+    }
+
+    public DiskRawQueueOptions setPreopenNextSegment(boolean preopenNextSegment) {
+        this.preopenNextSegment = preopenNextSegment;
+        return this;
+    }
+
+    public boolean compression() {
+        return compression;
+    }
+
+    /**
+     * Groups records into blocks of up to {@link CompressedDataFileWriter#BLOCK_SIZE} bytes compressed with
+     * {@link java.util.zip.Deflater} at {@code BEST_SPEED}, the fastest codec available without extra dependencies.
+     */
+    public DiskRawQueueOptions setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public boolean backgroundCompaction() {
+        return backgroundCompaction;
+    }
+
+    public DiskRawQueueOptions setBackgroundCompaction(boolean backgroundCompaction) {
+        this.backgroundCompaction = backgroundCompaction;
+        return this;
+    }
+
+    public int readAhead() {
+        return readAhead;
+    }
+
+    public DiskRawQueueOptions setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+        return this;
+    }
+
+    public long readAheadBytes() {
+        return readAheadBytes;
+    }
+
+    public DiskRawQueueOptions setReadAheadBytes(long readAheadBytes) {
+        this.readAheadBytes = readAheadBytes;
+        return this;
+    }
+
+    public long hotTailBytes() {
+        return hotTailBytes;
+    }
+
+    public DiskRawQueueOptions setHotTailBytes(long hotTailBytes) {
+        this.hotTailBytes = hotTailBytes;
+        return this;
+    }
+
+    public boolean concurrentAppends() {
+        return concurrentAppends;
+    }
+
+    //only takes effect on mapped, checksummed and uncompressed queues, where a slot whose copy fails can be skipped
+    public DiskRawQueueOptions setConcurrentAppends(boolean concurrentAppends) {
+        this.concurrentAppends = concurrentAppends;
+        return this;
+    }
+
+    public StorageMode storageMode() {
+        return storageMode;
+    }
+
+    public DiskRawQueueOptions setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+}
@@ -5,7 +5,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -77,6 +79,25 @@ public class Disq<T> implements AutoCloseable {
         return true;
     }
 
+    public CompletableFuture<Void> submitAsync(T obj) throws IOException {
+        if (!open.get()) {
+            CompletableFuture<Void> closed = new CompletableFuture<>();
+            closed.completeExceptionally(new IllegalStateException("This queue is already closed."));
+            return closed;
+        }
+        try (SerializerPool<T>.Slot slot = serializerPool.acquire()) {
+            return slot.pushAsync(queue, obj);
+        }
+    }
+
+    public boolean submitAll(Collection<? extends T> objs) throws IOException {
+        if (!open.get()) return false;
+        try (SerializerPool<T>.Slot slot = serializerPool.acquire()) {
+            slot.pushAll(queue, objs);
+        }
+        return true;
+    }
+
     public void pause() {
         queue.setPaused(true);
     }
@@ -2,6 +2,9 @@ package net.intelie.disq;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
@@ -11,13 +14,33 @@ public class DisqBuilder<T> {
     private SerializerFactory<T> serializer = new DefaultSerializer<>();
     private Path directory = null; //default to temp directory
     private long maxSize = Long.MAX_VALUE;
+    private long segmentSize = 0; //default to maxSize split in 121 files
     private boolean flushOnPop = true;
     private boolean flushOnPush = true;
+    private StorageMode storageMode = StorageMode.STREAM;
+    private boolean fsync = false;
+    private boolean checksum = false;
+    private boolean preallocate = false;
+    private int recycledSegments = 0;
+    private boolean backgroundReclaim = false;
+    private boolean preopenNextSegment = false;
+    private boolean compression = false;
+    private boolean backgroundCompaction = false;
+    private int readAhead = 0;
+    private long readAheadBytes = 16 * 1024 * 1024;
+    private long hotTailBytes = 0;
+    private boolean concurrentAppends = false;
+    private int lanes = 1;
+    private int memoryTierBytes = 0;
     private long autoFlushMs = -1;
 
     private int initialBufferCapacity = 4096;
     private int maxBufferCapacity = -1;
     private int fallbackBufferCapacity = 0;
+    private long fallbackRecoveryMs = InternalQueue.DEFAULT_RECOVERY_MS;
+    private List<Path> fallbackDirectories = new ArrayList<>();
+    private long fallbackDirectoryMaxSize = -1; //default to maxSize
+    private int writeBehindCapacity = 0;
     private int threadCount = 1;
     private ThreadFactory threadFactory = Executors.defaultThreadFactory();
 
@@ -44,6 +67,11 @@ public class DisqBuilder<T> {
         return this;
     }
 
+    public DisqBuilder<T> setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
     public DisqBuilder<T> setFlushOnPop(boolean flushOnPop) {
         this.flushOnPop = flushOnPop;
         return this;
@@ -54,11 +82,99 @@ public class DisqBuilder<T> {
         return this;
     }
 
+    public DisqBuilder<T> setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    public DisqBuilder<T> setFsync(boolean fsync) {
+        this.fsync = fsync;
+        return this;
+    }
+
+    public DisqBuilder<T> setChecksum(boolean checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    public DisqBuilder<T> setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+        return this;
+    }
+
+    public DisqBuilder<T> setRecycledSegments(int recycledSegments) {
+        this.recycledSegments = recycledSegments;
+        return this;
+    }
+
+    public DisqBuilder<T> setBackgroundReclaim(boolean backgroundReclaim) {
+        this.backgroundReclaim = backgroundReclaim;
+        return this;
+    }
+
+    public DisqBuilder<T> setPreopenNextSegment(boolean preopenNextSegment) {
+        this.preopenNextSegment = preopenNextSegment;
+        return this;
+    }
+
+    /**
+     * Compresses data files in blocks with {@link java.util.zip.Deflater} at {@code BEST_SPEED}, see
+     * {@link DiskRawQueueOptions#setCompression(boolean)}.
+     */
+    public DisqBuilder<T> setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public DisqBuilder<T> setBackgroundCompaction(boolean backgroundCompaction) {
+        this.backgroundCompaction = backgroundCompaction;
+        return this;
+    }
+
+    public DisqBuilder<T> setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+        return this;
+    }
+
+    public DisqBuilder<T> setReadAheadBytes(long readAheadBytes) {
+        this.readAheadBytes = readAheadBytes;
+        return this;
+    }
+
+    public DisqBuilder<T> setHotTailBytes(long hotTailBytes) {
+        this.hotTailBytes = hotTailBytes;
+        return this;
+    }
+
+    public DisqBuilder<T> setConcurrentAppends(boolean concurrentAppends) {
+        this.concurrentAppends = concurrentAppends;
+        return this;
+    }
+
+    /**
+     * Splits the queue in independent lanes, one per producer thread. Each lane holds at most
+     * {@code maxSize / lanes} bytes, so a lane can be full while others still have room.
+     */
+    public DisqBuilder<T> setLanes(int lanes) {
+        this.lanes = lanes;
+        return this;
+    }
+
+    public DisqBuilder<T> setWriteBehindCapacity(int writeBehindCapacity) {
+        this.writeBehindCapacity = writeBehindCapacity;
+        return this;
+    }
+
     public DisqBuilder<T> setAutoFlushMs(long autoFlushMs) {
         this.autoFlushMs = autoFlushMs;
         return this;
     }
 
+    public DisqBuilder<T> setMemoryTierBytes(int memoryTierBytes) {
+        this.memoryTierBytes = memoryTierBytes;
+        return this;
+    }
+
     public DisqBuilder<T> setInitialBufferCapacity(int initialBufferCapacity) {
         this.initialBufferCapacity = initialBufferCapacity;
         return this;
@@ -74,6 +190,25 @@ public class DisqBuilder<T> {
         return this;
     }
 
+    public DisqBuilder<T> setFallbackDirectories(Path... fallbackDirectories) {
+        return setFallbackDirectories(Arrays.asList(fallbackDirectories));
+    }
+
+    public DisqBuilder<T> setFallbackDirectories(List<Path> fallbackDirectories) {
+        this.fallbackDirectories = new ArrayList<>(fallbackDirectories);
+        return this;
+    }
+
+    public DisqBuilder<T> setFallbackDirectoryMaxSize(long fallbackDirectoryMaxSize) {
+        this.fallbackDirectoryMaxSize = fallbackDirectoryMaxSize;
+        return this;
+    }
+
+    public DisqBuilder<T> setFallbackRecoveryMs(long fallbackRecoveryMs) {
+        this.fallbackRecoveryMs = fallbackRecoveryMs;
+        return this;
+    }
+
     public DisqBuilder<T> setThreadCount(int threadCount) {
         this.threadCount = threadCount;
         return this;
@@ -111,11 +246,62 @@ public class DisqBuilder<T> {
     }
 
     public InternalQueue buildInternalQueue() {
-        return new InternalQueue(buildRawQueue(), fallbackBufferCapacity);
+        List<RawQueue> spills = new ArrayList<>();
+        long spillSize = fallbackDirectoryMaxSize >= 0 ? fallbackDirectoryMaxSize : maxSize;
+        for (Path fallbackDirectory : fallbackDirectories)
+            spills.add(new DiskRawQueue(fallbackDirectory, spillSize, buildSpillOptions()));
+        RawQueue disk = memoryTierBytes > 0 ? buildTieredRawQueue() : buildDiskQueue();
+        InternalQueue queue = new InternalQueue(disk, fallbackBufferCapacity, writeBehindCapacity, spills);
+        queue.setRecoveryMs(fallbackRecoveryMs);
+        return queue;
     }
 
     public DiskRawQueue buildRawQueue() {
-        return new DiskRawQueue(directory, maxSize, flushOnPop, flushOnPush);
+        return new DiskRawQueue(directory, maxSize, buildRawQueueOptions());
+    }
+
+    public LanedRawQueue buildLanedRawQueue() {
+        return new LanedRawQueue(directory, maxSize, lanes, buildRawQueueOptions());
+    }
+
+    public TieredRawQueue buildTieredRawQueue() {
+        return new TieredRawQueue(memoryTierBytes, buildDiskQueue());
+    }
+
+    private RawQueue buildDiskQueue() {
+        //a single lane still reads what a laned layout left in the directory before its own records
+        return lanes > 1 || LanedRawQueue.hasLanes(directory) ? buildLanedRawQueue() : buildRawQueue();
+    }
+
+    public DiskRawQueueOptions buildRawQueueOptions() {
+        return new DiskRawQueueOptions()
+                .setFlushOnPop(flushOnPop)
+                .setFlushOnPush(flushOnPush)
+                .setStorageMode(storageMode)
+                .setFsync(fsync)
+                .setChecksum(checksum)
+                .setSegmentSize(segmentSize)
+                .setPreallocate(preallocate)
+                .setRecycledSegments(recycledSegments)
+                .setBackgroundReclaim(backgroundReclaim)
+                .setPreopenNextSegment(preopenNextSegment)
+                .setCompression(compression)
+                .setBackgroundCompaction(backgroundCompaction)
+                .setReadAhead(readAhead)
+                .setReadAheadBytes(readAheadBytes)
+                .setHotTailBytes(hotTailBytes)
+                .setConcurrentAppends(concurrentAppends);
+    }
+
+    public DiskRawQueueOptions buildSpillOptions() {
+        //fallback directories keep the primary's durability, but not its background work or read caches,
+        //they only hold records while the primary is failing and are read back once
+        return buildRawQueueOptions()
+                .setBackgroundCompaction(false)
+                .setReadAhead(0)
+                .setPreopenNextSegment(false)
+                .setHotTailBytes(0)
+                .setConcurrentAppends(false);
     }
 
 }
@@ -0,0 +1,99 @@
+package net.intelie.disq;
+
+import java.util.ArrayDeque;
+
+public class HotTailCache {
+    private final long maxBytes;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final ArrayDeque<Entry> free = new ArrayDeque<>();
+    private long bytes;
+    //capacity held by recycled entries, kept under maxBytes so a burst of large records is not pinned forever
+    private long freeBytes;
+
+    public HotTailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void add(int file, long position, int written, Buffer buffer) {
+        int size = buffer.count();
+        if (size > maxBytes) return;
+        //the oldest records go first, a consumer that far behind reads them from disk anyway
+        while (bytes + size > maxBytes)
+            recycle(entries.poll());
+
+        Entry entry = free.poll();
+        if (entry != null)
+            freeBytes -= entry.buffer.buf().length;
+        else
+            entry = new Entry();
+        entry.file = file;
+        entry.position = position;
+        entry.written = written;
+        entry.buffer.setCount(size, false);
+        System.arraycopy(buffer.buf(), 0, entry.buffer.buf(), 0, size);
+        entries.add(entry);
+        bytes += size;
+    }
+
+    public synchronized boolean contains(int file, long position) {
+        return head(file, position) != null;
+    }
+
+    public synchronized int take(int file, long position, Buffer buffer, boolean consume) {
+        //returns the bytes the record takes on disk, or -1 when the record at this position is not cached
+        Entry entry = head(file, position);
+        if (entry == null)
+            return -1;
+
+        buffer.setCount(entry.buffer.count(), false);
+        System.arraycopy(entry.buffer.buf(), 0, buffer.buf(), 0, entry.buffer.count());
+        int written = entry.written;
+        if (consume)
+            recycle(entries.poll());
+        return written;
+    }
+
+    private Entry head(int file, long position) {
+        while (!entries.isEmpty() && entries.peek().file == file && entries.peek().position < position)
+            recycle(entries.poll());
+
+        Entry entry = entries.peek();
+        if (entry == null || entry.file != file || entry.position != position)
+            return null;
+        return entry;
+    }
+
+    public synchronized void discardFile(int file) {
+        while (!entries.isEmpty() && entries.peek().file == file)
+            recycle(entries.poll());
+    }
+
+    public synchronized void clear() {
+        while (!entries.isEmpty())
+            recycle(entries.poll());
+    }
+
+    private void recycle(Entry entry) {
+        bytes -= entry.buffer.count();
+        int capacity = entry.buffer.buf().length;
+        if (freeBytes + capacity > maxBytes)
+            return;
+        freeBytes += capacity;
+        free.add(entry);
+    }
+
+    private static class Entry {
+        private final Buffer buffer = new Buffer();
+        private int file;
+        private long position;
+        private int written;
+    }
+}
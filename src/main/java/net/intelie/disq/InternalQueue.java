@@ -5,27 +5,78 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class InternalQueue implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(InternalQueue.class);
 
     private static final long MAX_WAIT = TimeUnit.SECONDS.toNanos(10);
+    private static final int WRITE_BEHIND_BATCH = 1024;
+    private static final int MIGRATION_BATCH = 256;
+    public static final long DEFAULT_RECOVERY_MS = 1000;
 
     private final ArrayRawQueue fallback;
+    //disk queues tried in order before the memory fallback, producers append under the fallback monitor
+    //and records only leave them under spillLock
+    private final RawQueue[] spills;
+    private final Object spillLock = new Object();
+    //set while spilled records move back to disk, consumers then read the disk queue alone to keep them in order
+    private volatile boolean movingSpills;
+    private final List<RawQueue> originalSpills;
+    private final Buffer migrating = new Buffer();
     private final RawQueue queue;
     private final RawQueue original;
+    private final BufferRing ring;
 
-    private boolean paused;
+    //held by the writer task while it drains the ring, it exits when the ring is empty and producers start it again
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile boolean closing;
+    //producers between their closing check and their offer, close waits for them before the last drain
+    private final AtomicInteger enqueuing = new AtomicInteger();
+    //guarded by the ring, records the writer task already handed to the queue
+    private long written;
+    private boolean writerDone;
+    private boolean ringClosed;
+
+    //pops in progress, pausing waits for those that started before the flag was set
+    private final AtomicInteger popping = new AtomicInteger();
+    private volatile boolean paused;
+    //guarded by the monitor, lets a consumer that found nothing notice pushes that happened before it started waiting
+    private long pushes;
+
+    //guarded by the fallback, set while its records wait to be moved back to disk
+    private volatile boolean recovering;
+    private volatile long recoveryMs = DEFAULT_RECOVERY_MS;
+    private volatile boolean closed;
 
     public InternalQueue(RawQueue queue) {
         this(queue, 0);
     }
 
     public InternalQueue(RawQueue queue, int fallbackBufferCapacity) {
+        this(queue, fallbackBufferCapacity, 0);
+    }
+
+    public InternalQueue(RawQueue queue, int fallbackBufferCapacity, int writeBehindCapacity) {
+        this(queue, fallbackBufferCapacity, writeBehindCapacity, Collections.emptyList());
+    }
+
+    public InternalQueue(RawQueue queue, int fallbackBufferCapacity, int writeBehindCapacity, List<RawQueue> spillQueues) {
         this.fallback = new ArrayRawQueue(fallbackBufferCapacity);
+        this.originalSpills = new ArrayList<>(spillQueues);
+        this.spills = new RawQueue[spillQueues.size()];
+        for (int i = 0; i < spills.length; i++)
+            spills[i] = new LenientRawQueue(spillQueues.get(i));
         this.original = queue;
         this.queue = new LenientRawQueue(queue);
+        this.ring = writeBehindCapacity > 0 ? new BufferRing(writeBehindCapacity) : null;
     }
 
     public RawQueue rawQueue() {
@@ -36,23 +87,67 @@ public class InternalQueue implements Closeable {
         return fallback;
     }
 
-    public synchronized void setPaused(boolean paused) {
+    public List<RawQueue> spillQueues() {
+        return Collections.unmodifiableList(originalSpills);
+    }
+
+    public void setRecoveryMs(long recoveryMs) {
+        this.recoveryMs = recoveryMs;
+    }
+
+    public boolean recovering() {
+        return recovering;
+    }
+
+    public void setPaused(boolean paused) {
         this.paused = paused;
-        if (!paused)
-            notifyAll();
+        synchronized (this) {
+            if (paused) {
+                boolean interrupted = false;
+                while (popping.get() > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            } else {
+                pushes++;
+                notifyAll();
+            }
+        }
+    }
+
+    private void donePopping() {
+        //the last pop in progress wakes a caller waiting to pause
+        if (popping.decrementAndGet() == 0 && paused) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
     }
 
     public void reopen() throws IOException {
         queue.reopen();
+        for (RawQueue spill : spills)
+            spill.reopen();
         fallback.reopen();
     }
 
     public long bytes() {
-        return queue.bytes() + fallback.bytes();
+        long bytes = queue.bytes() + fallback.bytes() + (ring != null ? ring.bytes() : 0);
+        for (RawQueue spill : spills)
+            bytes += spill.bytes();
+        return bytes;
     }
 
     public long count() {
-        return queue.count() + fallback.count();
+        long count = queue.count() + fallback.count() + (ring != null ? ring.size() : 0);
+        for (RawQueue spill : spills)
+            count += spill.count();
+        return count;
     }
 
     public long remainingBytes() {
@@ -64,57 +159,490 @@ public class InternalQueue implements Closeable {
     }
 
     public void clear() throws IOException {
+        awaitWriteBehind();
         queue.clear();
+        for (RawQueue spill : spills)
+            spill.clear();
         fallback.clear();
     }
 
     public void flush() throws IOException {
+        awaitWriteBehind();
         queue.flush();
+        for (RawQueue spill : spills)
+            spill.flush();
         fallback.flush();
     }
 
-    public synchronized boolean blockingPop(Buffer buffer, long amount, TimeUnit unit) throws InterruptedException {
+    public boolean blockingPop(Buffer buffer, long amount, TimeUnit unit) throws InterruptedException {
         long target = System.nanoTime() + unit.toNanos(amount);
-        while (!pop(buffer)) {
+        while (true) {
+            long seen = pushes();
+            if (pop(buffer)) return true;
             long wait = Math.min(MAX_WAIT, target - System.nanoTime());
             if (wait <= 0) return false;
-            TimeUnit.NANOSECONDS.timedWait(this, wait);
+            awaitPush(seen, wait);
+        }
+    }
+
+    public void blockingPop(Buffer buffer) throws InterruptedException {
+        while (true) {
+            long seen = pushes();
+            if (pop(buffer)) return;
+            awaitPush(seen, MAX_WAIT);
         }
-        return true;
     }
 
-    public synchronized void blockingPop(Buffer buffer) throws InterruptedException {
-        while (!pop(buffer))
-            TimeUnit.NANOSECONDS.timedWait(this, MAX_WAIT);
+    private synchronized long pushes() {
+        return pushes;
     }
 
+    private synchronized void awaitPush(long seen, long nanos) throws InterruptedException {
+        //the queues are popped outside the monitor, so producers never wait for a consumer's disk read
+        if (pushes == seen)
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+    }
 
-    public synchronized boolean pop(Buffer buffer) {
-        if (paused) return false;
+    public boolean pop(Buffer buffer) {
+        popping.incrementAndGet();
         try {
-            if (fallback.pop(buffer)) return true;
+            if (paused) return false;
+            if (spills.length > 0 && popSpilled(buffer, true)) return true;
+            if (!movingSpills && fallback.pop(buffer)) return true;
             return queue.pop(buffer);
         } catch (IOException e) {
             LOGGER.info("Error popping", e);
             return false;
+        } finally {
+            donePopping();
+        }
+    }
+
+    private boolean popSpilled(Buffer buffer, boolean consume) {
+        for (RawQueue spill : spills) {
+            if (spill.count() == 0) continue;
+            synchronized (spillLock) {
+                if (movingSpills) return false;
+                try {
+                    if (consume ? spill.pop(buffer) : spill.peek(buffer)) return true;
+                } catch (IOException e) {
+                    //a broken spill directory must not hide the records behind it
+                    LOGGER.info("Error popping from spill queue", e);
+                }
+            }
         }
+        return false;
     }
 
-    public synchronized void push(Buffer buffer) {
+    public int drainTo(BufferList target, int maxCount, long maxBytes) {
+        popping.incrementAndGet();
         try {
-            queue.push(buffer);
+            return drainUnpaused(target, maxCount, maxBytes);
+        } finally {
+            donePopping();
+        }
+    }
+
+    private int drainUnpaused(BufferList target, int maxCount, long maxBytes) {
+        if (paused) return 0;
+        int start = target.size();
+        try {
+            for (int i = 0; i < spills.length && target.size() == start && !movingSpills; i++) {
+                if (spills[i].count() == 0) continue;
+                synchronized (spillLock) {
+                    if (movingSpills) break;
+                    try {
+                        spills[i].drainTo(target, maxCount, maxBytes);
+                    } catch (IOException e) {
+                        LOGGER.info("Error draining from spill queue", e);
+                    }
+                }
+            }
+            if (target.size() == start && !movingSpills)
+                fallback.drainTo(target, maxCount, maxBytes);
+            int drained = target.size() - start;
+            long bytes = 0;
+            for (int i = start; i < target.size(); i++)
+                bytes += target.get(i).count();
+            if (drained < maxCount && bytes < maxBytes)
+                queue.drainTo(target, maxCount - drained, maxBytes - bytes);
         } catch (IOException e) {
-            LOGGER.info("Error pushing", e);
-            fallback.push(buffer);
+            LOGGER.info("Error draining", e);
+        }
+        return target.size() - start;
+    }
+
+    public void push(Buffer buffer) {
+        if (ring == null || !enqueue(buffer, null))
+            pushNow(buffer);
+    }
+
+    public CompletableFuture<Void> pushAsync(Buffer buffer) {
+        //completes once the record reached the disk queue, or exceptionally when it was kept in a fallback instead
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        if (ring == null || !enqueue(buffer, ack))
+            acknowledge(ack, pushNow(buffer));
+        return ack;
+    }
+
+    private IOException pushNow(Buffer buffer) {
+        //not holding the monitor while pushing allows concurrent producers to share a commit
+        IOException error = recovering ? pushBehindFallback(buffer, null) : null;
+        if (error == null) {
+            try {
+                queue.push(buffer);
+            } catch (IOException e) {
+                LOGGER.info("Error pushing", e);
+                pushFallback(buffer, null);
+                error = e;
+            }
+        }
+        synchronized (this) {
+            pushes++;
+            notify();
+        }
+        return error;
+    }
+
+    public void pushBatch(BufferList batch) {
+        int enqueued = 0;
+        while (ring != null && enqueued < batch.size() && enqueue(batch.get(enqueued), null))
+            enqueued++;
+        if (enqueued == 0) {
+            pushBatchNow(batch);
+        } else if (enqueued < batch.size()) {
+            BufferList rest = new BufferList();
+            rest.addAll(batch, enqueued);
+            pushBatchNow(rest);
+        }
+    }
+
+    private IOException pushBatchNow(BufferList batch) {
+        IOException error = recovering ? pushBehindFallback(null, batch) : null;
+        if (error == null) {
+            try {
+                queue.pushBatch(batch);
+            } catch (IOException e) {
+                LOGGER.info("Error pushing batch", e);
+                int written = PartialBatchException.written(e);
+                if (written > 0) {
+                    BufferList rest = new BufferList();
+                    rest.addAll(batch, written);
+                    pushFallback(null, rest);
+                } else {
+                    pushFallback(null, batch);
+                }
+                error = e;
+            }
+        }
+        synchronized (this) {
+            pushes++;
+            notifyAll();
+        }
+        return error;
+    }
+
+    private IOException pushBehindFallback(Buffer buffer, BufferList batch) {
+        //while fallback records wait for the disk, newer ones queue up behind them so they reach it in order
+        synchronized (fallback) {
+            if (!recovering) return null;
+            //with nothing left waiting there is no order to keep, the disk is tried again right away
+            if (fallback.count() == 0 && spilledCount() == 0) {
+                recovering = false;
+                return null;
+            }
+            //records that would push older ones out of a full fallback first try to move those to disk
+            long needed = buffer != null ? buffer.count() + 4L : batch.bytes() + 4L * batch.size();
+            if (spills.length == 0 && fallback.remainingBytes() < needed && migrateFallback())
+                return null;
+            pushFallback(buffer, batch);
+            return new IOException("Disk queue is recovering, record kept in fallback");
+        }
+    }
+
+    private long spilledCount() {
+        long count = 0;
+        for (RawQueue spill : spills)
+            count += spill.count();
+        return count;
+    }
+
+    private void pushFallback(Buffer buffer, BufferList batch) {
+        synchronized (fallback) {
+            if (buffer != null) {
+                if (!pushSpilled(buffer))
+                    fallback.push(buffer);
+            } else {
+                for (int i = pushSpilled(batch); i < batch.size(); i++)
+                    fallback.push(batch.get(i));
+            }
+            if (!recovering && !closed) {
+                recovering = true;
+                BackgroundIo.scheduleRecovery(this::recoverFallback, recoveryMs);
+            }
+        }
+    }
+
+    private boolean pushSpilled(Buffer buffer) {
+        for (RawQueue spill : spills) {
+            try {
+                spill.push(buffer);
+                return true;
+            } catch (IOException e) {
+                LOGGER.info("Error pushing to spill queue", e);
+            }
+        }
+        return false;
+    }
+
+    private int pushSpilled(BufferList batch) {
+        //returns how many records of the batch were stored, the next spill queue only gets the rest
+        int written = 0;
+        for (RawQueue spill : spills) {
+            try {
+                if (written == 0) {
+                    spill.pushBatch(batch);
+                } else {
+                    BufferList rest = new BufferList();
+                    rest.addAll(batch, written);
+                    spill.pushBatch(rest);
+                }
+                return batch.size();
+            } catch (IOException e) {
+                LOGGER.info("Error pushing to spill queue", e);
+                written += PartialBatchException.written(e);
+            }
+        }
+        return written;
+    }
+
+    private void recoverFallback() {
+        if (closed) return;
+        if (!migrateFallback())
+            BackgroundIo.scheduleRecovery(this::recoverFallback, recoveryMs);
+    }
+
+    private boolean migrateFallback() {
+        try {
+            //spilled records move a batch at a time without holding the fallback, so producers are not blocked
+            for (RawQueue spill : spills) {
+                int moved;
+                do {
+                    moved = migrateSpill(spill, MIGRATION_BATCH);
+                } while (moved == MIGRATION_BATCH);
+                if (moved < 0) return false;
+            }
+            //holding the fallback keeps consumers from popping newer records while older ones are moving
+            synchronized (fallback) {
+                return migrateRest();
+            }
+        } finally {
+            movingSpills = false;
+            synchronized (this) {
+                pushes++;
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean migrateRest() {
+        //only what producers spilled during the batches above is left
+        for (RawQueue spill : spills)
+            if (migrateSpill(spill, Integer.MAX_VALUE) < 0) return false;
+        if (fallback.count() > 0) {
+            BufferList batch = new BufferList();
+            try {
+                fallback.drainTo(batch, Integer.MAX_VALUE, Long.MAX_VALUE);
+                queue.pushBatch(batch);
+            } catch (IOException e) {
+                for (int i = PartialBatchException.written(e); i < batch.size(); i++)
+                    fallback.push(batch.get(i));
+                return false;
+            }
+        }
+        recovering = false;
+        return true;
+    }
+
+    private int migrateSpill(RawQueue spill, int max) {
+        //returns how many records moved, or -1 when the disk failed
+        //one record at a time, a spilled record is only removed once the disk queue has it
+        synchronized (spillLock) {
+            int moved = 0;
+            for (; moved < max; moved++) {
+                try {
+                    if (!spill.peek(migrating)) return moved;
+                } catch (IOException e) {
+                    LOGGER.info("Unable to read spill queue, leaving its records behind", e);
+                    return moved;
+                }
+                movingSpills = true;
+                try {
+                    queue.push(migrating);
+                } catch (IOException e) {
+                    return -1;
+                }
+                try {
+                    spill.pop(migrating);
+                } catch (IOException e) {
+                    LOGGER.info("Unable to remove record moved from spill queue", e);
+                    return moved + 1;
+                }
+            }
+            return moved;
+        }
+    }
+
+    private static void acknowledge(CompletableFuture<Void> ack, IOException error) {
+        if (error == null)
+            ack.complete(null);
+        else
+            ack.completeExceptionally(error);
+    }
+
+    private boolean enqueue(Buffer buffer, CompletableFuture<Void> ack) {
+        //a full ring holds the producer back, so its records still reach the disk in the order it pushed them
+        enqueuing.incrementAndGet();
+        try {
+            while (!closing) {
+                boolean offered = ring.offer(buffer, ack);
+                startWriter();
+                if (offered)
+                    return true;
+                awaitRingSpace();
+            }
+        } finally {
+            enqueuing.decrementAndGet();
+        }
+        //the caller pushes it directly, only after close has written what this producer left in the ring
+        awaitRingClosed();
+        return false;
+    }
+
+    private void awaitRingClosed() {
+        boolean interrupted = false;
+        synchronized (ring) {
+            while (!ringClosed) {
+                try {
+                    ring.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void awaitRingSpace() {
+        //the writer notifies the ring after every batch it takes out
+        boolean interrupted = false;
+        synchronized (ring) {
+            while (ring.size() >= ring.capacity() && !closing) {
+                try {
+                    ring.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void startWriter() {
+        if (!writing.get() && writing.compareAndSet(false, true))
+            BackgroundIo.submitWriteBehind(this::writeBehind);
+    }
+
+    private void writeBehind() {
+        BufferList batch = new BufferList();
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        while (true) {
+            if (writeRing(batch, acks) > 0)
+                continue;
+            if (ring.size() > 0) {
+                //a producer claimed a slot and is still copying into it
+                Thread.yield();
+                continue;
+            }
+            synchronized (ring) {
+                writing.set(false);
+                ring.notifyAll();
+            }
+            //a producer that offered before the flag was cleared may have seen it set and not started another writer
+            if (ring.size() == 0 || !writing.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    private int writeRing(BufferList batch, List<CompletableFuture<Void>> acks) {
+        //only one thread at a time drains the ring, whoever holds the writing flag
+        int drained = ring.drainTo(batch, acks, WRITE_BEHIND_BATCH);
+        if (drained == 0)
+            return 0;
+        IOException error = pushBatchNow(batch);
+        for (CompletableFuture<Void> ack : acks)
+            acknowledge(ack, error);
+        batch.clear();
+        acks.clear();
+        synchronized (ring) {
+            written += drained;
+            ring.notifyAll();
+        }
+        return drained;
+    }
+
+    private void closeRing() {
+        closing = true;
+        try {
+            synchronized (ring) {
+                ring.notifyAll();
+                //close keeps the flag, so no writer starts after the one running now
+                while (!writing.compareAndSet(false, true))
+                    ring.wait();
+                writerDone = true;
+                ring.notifyAll();
+            }
+            //a producer that passed its closing check before it was set may still be offering
+            while (enqueuing.get() > 0)
+                Thread.yield();
+            BufferList batch = new BufferList();
+            List<CompletableFuture<Void>> acks = new ArrayList<>();
+            while (ring.size() > 0)
+                writeRing(batch, acks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.info("Interrupted while waiting for write-behind records on close");
+        } finally {
+            synchronized (ring) {
+                ringClosed = true;
+                ring.notifyAll();
+            }
+        }
+    }
+
+    private void awaitWriteBehind() throws InterruptedIOException {
+        if (ring == null) return;
+        long target = ring.offered();
+        synchronized (ring) {
+            while (written < target && !writerDone) {
+                try {
+                    ring.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for write-behind records");
+                }
+            }
         }
-        notify();
     }
 
     public boolean peek(Buffer buffer) {
         if (paused) return false;
 
         try {
-            if (fallback.peek(buffer)) return true;
+            if (spills.length > 0 && popSpilled(buffer, false)) return true;
+            if (!movingSpills && fallback.peek(buffer)) return true;
             return queue.peek(buffer);
         } catch (IOException e) {
             LOGGER.info("Error peeking", e);
@@ -124,6 +652,13 @@ public class InternalQueue implements Closeable {
 
     @Override
     public void close() {
+        if (ring != null)
+            closeRing();
+        closed = true;
+        if (recovering && !migrateFallback())
+            LOGGER.info("Unable to move fallback records back to disk on close");
         queue.close();
+        for (RawQueue spill : spills)
+            spill.close();
     }
 }
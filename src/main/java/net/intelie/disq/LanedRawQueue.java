@@ -0,0 +1,247 @@
+package net.intelie.disq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LanedRawQueue implements RawQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LanedRawQueue.class);
+
+    private final DiskRawQueue[] lanes;
+    //data left by a layout with no lanes or more lanes, read before the lanes and never pushed to
+    private final DiskRawQueue[] leftovers;
+    private volatile boolean leftoversDrained;
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private final AtomicInteger nextRead = new AtomicInteger();
+    //each producer thread keeps to one lane, so its records are still read in the order it pushed them
+    private final ThreadLocal<DiskRawQueue> lane = ThreadLocal.withInitial(this::assignLane);
+
+    public LanedRawQueue(Path directory, long maxSize, int lanes, DiskRawQueueOptions options) {
+        this.lanes = new DiskRawQueue[Math.max(1, lanes)];
+        //lanes do not share their budget, each one holds at most maxSize / lanes bytes
+        //a single lane is the directory itself, as a plain queue would use it
+        for (int i = 0; i < this.lanes.length; i++) {
+            Path path = directory == null || this.lanes.length == 1 ? directory : directory.resolve(String.format((Locale) null, "lane%02x", i));
+            this.lanes[i] = new DiskRawQueue(path, maxSize / this.lanes.length, options);
+        }
+        this.leftovers = openLeftovers(directory, maxSize, options);
+        this.leftoversDrained = leftovers.length == 0;
+    }
+
+    private DiskRawQueue[] openLeftovers(Path directory, long maxSize, DiskRawQueueOptions options) {
+        List<Path> paths = new ArrayList<>();
+        if (directory == null || !Files.isDirectory(directory))
+            return new DiskRawQueue[0];
+        if (this.lanes.length > 1 && Files.exists(directory.resolve("state")))
+            paths.add(directory);
+        for (Path path : laneDirectories(directory)) {
+            int index = laneIndex(path.getFileName().toString());
+            if (index >= this.lanes.length || this.lanes.length == 1)
+                paths.add(path);
+        }
+
+        List<DiskRawQueue> leftovers = new ArrayList<>();
+        for (Path path : paths) {
+            DiskRawQueue queue = new DiskRawQueue(path, maxSize, options);
+            if (queue.count() > 0) {
+                LOGGER.warn("Found {} records from another lane layout in {}, they are read before the lanes", queue.count(), path);
+                leftovers.add(queue);
+            } else {
+                queue.close();
+            }
+        }
+        return leftovers.toArray(new DiskRawQueue[0]);
+    }
+
+    public static boolean hasLanes(Path directory) {
+        return directory != null && !laneDirectories(directory).isEmpty();
+    }
+
+    private static List<Path> laneDirectories(Path directory) {
+        List<Path> paths = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return paths;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "lane*")) {
+            for (Path path : stream)
+                if (Files.isDirectory(path) && laneIndex(path.getFileName().toString()) >= 0)
+                    paths.add(path);
+        } catch (IOException e) {
+            LOGGER.info("Unable to list old lanes in {}", directory, e);
+        }
+        return paths;
+    }
+
+    private static int laneIndex(String name) {
+        try {
+            return Integer.parseInt(name.substring(4), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean popLeftover(Buffer buffer) throws IOException {
+        if (leftoversDrained)
+            return false;
+        for (DiskRawQueue leftover : leftovers)
+            if (leftover.pop(buffer))
+                return true;
+        //nothing is ever pushed to them, so once empty they stay empty
+        leftoversDrained = true;
+        return false;
+    }
+
+    private DiskRawQueue assignLane() {
+        return lanes[Math.floorMod(nextLane.getAndIncrement(), lanes.length)];
+    }
+
+    public int lanes() {
+        return lanes.length;
+    }
+
+    public DiskRawQueue lane(int index) {
+        return lanes[index];
+    }
+
+    private int readStart() {
+        return Math.floorMod(nextRead.getAndIncrement(), lanes.length);
+    }
+
+    @Override
+    public void reopen() {
+        for (DiskRawQueue leftover : leftovers)
+            leftover.reopen();
+        for (DiskRawQueue lane : lanes)
+            lane.reopen();
+    }
+
+    @Override
+    public long bytes() {
+        long bytes = 0;
+        for (DiskRawQueue leftover : leftovers)
+            bytes += leftover.bytes();
+        for (DiskRawQueue lane : lanes)
+            bytes += lane.bytes();
+        return bytes;
+    }
+
+    @Override
+    public long count() {
+        long count = 0;
+        for (DiskRawQueue leftover : leftovers)
+            count += leftover.count();
+        for (DiskRawQueue lane : lanes)
+            count += lane.count();
+        return count;
+    }
+
+    @Override
+    public long remainingBytes() {
+        long remaining = 0;
+        for (DiskRawQueue lane : lanes)
+            remaining += lane.remainingBytes();
+        return remaining;
+    }
+
+    @Override
+    public long remainingCount() {
+        long remaining = 0;
+        for (DiskRawQueue lane : lanes)
+            remaining += lane.remainingCount();
+        return remaining;
+    }
+
+    @Override
+    public void touch() throws IOException {
+        for (DiskRawQueue leftover : leftovers)
+            leftover.touch();
+        for (DiskRawQueue lane : lanes)
+            lane.touch();
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (DiskRawQueue leftover : leftovers)
+            leftover.clear();
+        leftoversDrained = true;
+        for (DiskRawQueue lane : lanes)
+            lane.clear();
+    }
+
+    @Override
+    public boolean pop(Buffer buffer) throws IOException {
+        if (popLeftover(buffer))
+            return true;
+        int start = readStart();
+        for (int i = 0; i < lanes.length; i++)
+            if (lanes[(start + i) % lanes.length].pop(buffer))
+                return true;
+        return false;
+    }
+
+    @Override
+    public boolean peek(Buffer buffer) throws IOException {
+        if (!leftoversDrained)
+            for (DiskRawQueue leftover : leftovers)
+                if (leftover.peek(buffer))
+                    return true;
+        int start = nextRead.get();
+        for (int i = 0; i < lanes.length; i++)
+            if (lanes[Math.floorMod(start + i, lanes.length)].peek(buffer))
+                return true;
+        return false;
+    }
+
+    @Override
+    public int drainTo(BufferList target, int maxCount, long maxBytes) throws IOException {
+        int drained = 0;
+        long bytes = 0;
+        for (int i = 0; !leftoversDrained && i < leftovers.length && drained < maxCount && bytes < maxBytes; i++) {
+            int from = target.size();
+            drained += leftovers[i].drainTo(target, maxCount - drained, maxBytes - bytes);
+            for (int j = from; j < target.size(); j++)
+                bytes += target.get(j).count();
+        }
+        int start = readStart();
+        for (int i = 0; i < lanes.length && drained < maxCount && bytes < maxBytes; i++) {
+            int from = target.size();
+            drained += lanes[(start + i) % lanes.length].drainTo(target, maxCount - drained, maxBytes - bytes);
+            for (int j = from; j < target.size(); j++)
+                bytes += target.get(j).count();
+        }
+        return drained;
+    }
+
+    @Override
+    public void push(Buffer buffer) throws IOException {
+        lane.get().push(buffer);
+    }
+
+    @Override
+    public void pushBatch(BufferList batch) throws IOException {
+        lane.get().pushBatch(batch);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (DiskRawQueue leftover : leftovers)
+            leftover.flush();
+        for (DiskRawQueue lane : lanes)
+            lane.flush();
+    }
+
+    @Override
+    public void close() {
+        for (DiskRawQueue leftover : leftovers)
+            leftover.close();
+        for (DiskRawQueue lane : lanes)
+            lane.close();
+    }
+}
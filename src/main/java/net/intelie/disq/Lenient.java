@@ -10,14 +10,14 @@ import java.nio.file.Path;
 public abstract class Lenient {
     private static final Logger LOGGER = LoggerFactory.getLogger(Lenient.class);
 
-    public static long perform(RawQueue queue, Buffer buffer, Op supplier) throws IOException {
+    public static <T> long perform(RawQueue queue, T arg, Op<T> supplier) throws IOException {
         try {
-            return supplier.call(buffer);
+            return supplier.call(arg);
         } catch (Throwable e) {
             LOGGER.info("First try queue operation error", e);
             queue.reopen();
             try {
-                return supplier.call(buffer);
+                return supplier.call(arg);
             } catch (Throwable e2) {
                 LOGGER.info("Second try queue operation error", e2);
                 queue.reopen();
@@ -26,9 +26,38 @@ public abstract class Lenient {
         }
     }
 
-    public static long performSafe(RawQueue queue, Buffer buffer, Op supplier, long defaultValue) {
+    public static void pushBatch(RawQueue queue, BufferList batch) throws IOException {
+        //records a failed batch already wrote are not pushed again
+        int written = 0;
         try {
-            return perform(queue, buffer, supplier);
+            queue.pushBatch(batch);
+            return;
+        } catch (Throwable e) {
+            LOGGER.info("First try queue operation error", e);
+            written = PartialBatchException.written(e);
+            queue.reopen();
+        }
+        try {
+            if (written < batch.size()) {
+                BufferList rest = new BufferList();
+                rest.addAll(batch, written);
+                queue.pushBatch(rest);
+            } else {
+                queue.flush();
+            }
+        } catch (Throwable e2) {
+            LOGGER.info("Second try queue operation error", e2);
+            queue.reopen();
+            written += PartialBatchException.written(e2);
+            if (written > 0)
+                throw new PartialBatchException(Math.min(written, batch.size()), e2);
+            throw e2;
+        }
+    }
+
+    public static <T> long performSafe(RawQueue queue, T arg, Op<T> supplier, long defaultValue) {
+        try {
+            return perform(queue, arg, supplier);
         } catch (Throwable e) {
             return defaultValue;
         }
@@ -52,7 +81,7 @@ public abstract class Lenient {
         }
     }
 
-    public interface Op {
-        long call(Buffer buffer) throws IOException;
+    public interface Op<T> {
+        long call(T arg) throws IOException;
     }
 }
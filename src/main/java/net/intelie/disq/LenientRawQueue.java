@@ -4,18 +4,18 @@ import java.io.IOException;
 
 public class LenientRawQueue implements RawQueue {
     private final RawQueue queue;
-    private final Lenient.Op reopen;
-    private final Lenient.Op bytes;
-    private final Lenient.Op count;
-    private final Lenient.Op remainingBytes;
-    private final Lenient.Op remainingCount;
-    private final Lenient.Op touch;
-    private final Lenient.Op clear;
-    private final Lenient.Op pop;
-    private final Lenient.Op peek;
-    private final Lenient.Op push;
-    private final Lenient.Op flush;
-    private final Lenient.Op close;
+    private final Lenient.Op<Buffer> reopen;
+    private final Lenient.Op<Buffer> bytes;
+    private final Lenient.Op<Buffer> count;
+    private final Lenient.Op<Buffer> remainingBytes;
+    private final Lenient.Op<Buffer> remainingCount;
+    private final Lenient.Op<Buffer> touch;
+    private final Lenient.Op<Buffer> clear;
+    private final Lenient.Op<Buffer> pop;
+    private final Lenient.Op<Buffer> peek;
+    private final Lenient.Op<Buffer> push;
+    private final Lenient.Op<Buffer> flush;
+    private final Lenient.Op<Buffer> close;
 
     public LenientRawQueue(RawQueue queue) {
         this.queue = queue;
@@ -97,11 +97,21 @@ public class LenientRawQueue implements RawQueue {
         return Lenient.perform(queue, buffer, peek) > 0;
     }
 
+    @Override
+    public int drainTo(BufferList target, int maxCount, long maxBytes) throws IOException {
+        return (int) Lenient.perform(queue, target, x -> queue.drainTo(x, maxCount, maxBytes));
+    }
+
     @Override
     public void push(Buffer buffer) throws IOException {
         Lenient.perform(queue, buffer, push);
     }
 
+    @Override
+    public void pushBatch(BufferList batch) throws IOException {
+        Lenient.pushBatch(queue, batch);
+    }
+
     @Override
     public void flush() throws IOException {
         Lenient.perform(queue, null, flush);
@@ -0,0 +1,133 @@
+package net.intelie.disq;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+public class MappedDataFileReader implements SkippableDataFileReader {
+    private final FileChannel channel;
+    private final boolean checksummed;
+    private final Checksum checksum;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long limit = Long.MAX_VALUE;
+    private ByteBuffer scratch;
+
+    public MappedDataFileReader(Path file, long position) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.checksummed = DataFileFormat.isChecksummed(channel);
+        this.checksum = checksummed ? DataFileFormat.newChecksum() : null;
+        this.position = position;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public int read(Buffer buffer) throws IOException {
+        int total = checksummed ? readChecksummed(buffer, false) : internalRead(buffer);
+        position += total;
+        return total;
+    }
+
+    @Override
+    public void limit(long end) {
+        //mapped windows share the page cache with the writer, the limit only bounds resynchronization
+        this.limit = end;
+    }
+
+    @Override
+    public void skip(long bytes) {
+        position += bytes;
+    }
+
+    @Override
+    public int peek(Buffer buffer) throws IOException {
+        return checksummed ? readChecksummed(buffer, true) : internalRead(buffer);
+    }
+
+    private int internalRead(Buffer buffer) throws IOException {
+        ensureWindow(DataFileWriter.OVERHEAD);
+        int size = window.getInt(offset());
+        if (size < 0)
+            throw new IOException("Invalid record size: " + size);
+        buffer.setCount(size, false);
+
+        ensureWindow(DataFileWriter.OVERHEAD + size);
+        window.position(offset() + DataFileWriter.OVERHEAD);
+        window.get(buffer.buf(), 0, size);
+        return DataFileWriter.OVERHEAD + size;
+    }
+
+    private int readChecksummed(Buffer buffer, boolean peek) throws IOException {
+        int overhead = DataFileFormat.CHECKSUMMED_OVERHEAD;
+        if (!tryEnsureWindow(overhead) || window.getInt(offset()) != DataFileFormat.SYNC_MARKER)
+            throw corrupted(peek);
+        int size = window.getInt(offset() + 4);
+        int expected = window.getInt(offset() + 8);
+        if (size < 0 || position + overhead + size > limit || !tryEnsureWindow(overhead + size))
+            throw corrupted(peek);
+        //a record that would grow the target is checked first, so a damaged size never sizes an allocation
+        if (size > buffer.currentCapacity() && !isValidRecord())
+            throw corrupted(peek);
+
+        buffer.setCount(size, false);
+        window.position(offset() + overhead);
+        window.get(buffer.buf(), 0, size);
+        if (DataFileFormat.checksum(checksum, size, buffer.buf(), 0) != expected)
+            throw corrupted(peek);
+        return overhead + size;
+    }
+
+    private boolean isValidRecord() throws IOException {
+        if (scratch == null)
+            scratch = ByteBuffer.allocate(DataFileFormat.SCAN_CHUNK);
+        return DataFileFormat.isValidRecord(channel, position, Math.min(limit, channel.size()), checksum, scratch);
+    }
+
+    private IOException corrupted(boolean peek) throws IOException {
+        if (peek)
+            return new IOException("Corrupted record at position " + position);
+        long next = DataFileFormat.findNextRecord(channel, position + 1, limit, checksum);
+        CorruptedRecordException e = new CorruptedRecordException(position, next - position);
+        position = next;
+        return e;
+    }
+
+    private int offset() {
+        return (int) (position - windowStart);
+    }
+
+    private boolean tryEnsureWindow(int needed) throws IOException {
+        try {
+            ensureWindow(needed);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void ensureWindow(int needed) throws IOException {
+        if (window != null && position >= windowStart && position + needed <= windowStart + window.capacity())
+            return;
+        long available = channel.size() - position;
+        if (available < needed)
+            throw new EOFException();
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(available, Math.max(needed, MappedDataFileWriter.WINDOW_SIZE)));
+        windowStart = position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,162 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+
+public class MappedDataFileWriter implements DataFileWriter {
+    public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long limit;
+    private final boolean preallocate;
+    private final boolean checksummed;
+    private final Checksum checksum;
+    private MappedByteBuffer window;
+    //windows replaced since the last sync, their pages may still be dirty
+    private final List<MappedByteBuffer> retired = new ArrayList<>();
+    private long windowStart;
+    private long position;
+
+    public MappedDataFileWriter(Path file, long position, long limit, boolean checksummed) throws IOException {
+        this(file, position, limit, checksummed, false);
+    }
+
+    public MappedDataFileWriter(Path file, long position, long limit, boolean checksummed, boolean preallocate) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.limit = limit;
+        this.preallocate = preallocate;
+        this.position = position;
+        try {
+            if (!preallocate && channel.size() > position)
+                channel.truncate(position);
+            if (preallocate && channel.size() < limit)
+                DataFileFormat.allocate(channel, channel.size(), limit);
+            this.checksummed = position > 0 ? DataFileFormat.isChecksummed(channel) : checksummed;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.checksum = this.checksummed ? DataFileFormat.newChecksum() : null;
+    }
+
+    @Override
+    public int write(Buffer buffer) throws IOException {
+        int size = buffer.count();
+        int total = size + DataFileFormat.overhead(checksummed);
+        ensureWindow(total);
+
+        if (checksummed) {
+            window.putInt(DataFileFormat.SYNC_MARKER);
+            window.putInt(size);
+            window.putInt(DataFileFormat.checksum(checksum, size, buffer.buf(), 0));
+        } else {
+            window.putInt(size);
+        }
+        window.put(buffer.buf(), 0, size);
+        position += total;
+        return total;
+    }
+
+    public Reservation reserve(int size) throws IOException {
+        //the bytes are claimed here and filled later, possibly by several threads at once
+        int total = size + DataFileFormat.overhead(checksummed);
+        ensureWindow(total);
+
+        ByteBuffer slot = window.duplicate();
+        slot.limit(slot.position() + total);
+        window.position(window.position() + total);
+        position += total;
+        return new Reservation(slot, total, checksummed);
+    }
+
+    private void ensureWindow(int needed) throws IOException {
+        if (window != null && position + needed <= windowStart + window.capacity())
+            return;
+        long size = Math.max(needed, Math.min(WINDOW_SIZE, limit - position));
+        if (window != null)
+            retired.add(window);
+        window = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        windowStart = position;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void flush() {
+        //mapped pages are shared with readers through the page cache
+    }
+
+    @Override
+    public void sync() throws IOException {
+        //only the mapping itself is specified to write its pages back, forcing the channel may not
+        for (MappedByteBuffer old : retired)
+            old.force();
+        retired.clear();
+        if (window != null)
+            window.force();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        retired.clear();
+        try {
+            //windows map past the last record, a preallocated file keeps that length for its next use
+            if (!preallocate)
+                channel.truncate(position);
+        } finally {
+            channel.close();
+        }
+    }
+
+    public static class Reservation {
+        private final ByteBuffer slot;
+        private final int start;
+        private final int size;
+        private final boolean checksummed;
+        //guarded by whoever publishes the reservations, in the order they were made
+        boolean copied;
+        boolean failed;
+        boolean published;
+
+        private Reservation(ByteBuffer slot, int size, boolean checksummed) {
+            this.slot = slot;
+            this.start = slot.position();
+            this.size = size;
+            this.checksummed = checksummed;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void discard() {
+            //a recycled segment may still hold an old valid record here, nothing in the slot may pass as one
+            for (int i = start; i < start + size; i++)
+                slot.put(i, (byte) 0);
+        }
+
+        public void copy(Buffer buffer) {
+            int size = buffer.count();
+            if (checksummed) {
+                slot.putInt(DataFileFormat.SYNC_MARKER);
+                slot.putInt(size);
+                slot.putInt(DataFileFormat.checksum(DataFileFormat.newChecksum(), size, buffer.buf(), 0));
+            } else {
+                slot.putInt(size);
+            }
+            slot.put(buffer.buf(), 0, size);
+        }
+    }
+}
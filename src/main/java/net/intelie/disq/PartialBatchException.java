@@ -0,0 +1,22 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+
+public class PartialBatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int written;
+
+    public PartialBatchException(int written, Throwable cause) {
+        super("Batch failed after " + written + " records were written", cause);
+        this.written = written;
+    }
+
+    public int written() {
+        return written;
+    }
+
+    public static int written(Throwable e) {
+        return e instanceof PartialBatchException ? ((PartialBatchException) e).written() : 0;
+    }
+}
@@ -2,6 +2,8 @@ package net.intelie.disq;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 public class PersistentQueue<T> implements Closeable {
@@ -76,12 +78,30 @@ public class PersistentQueue<T> implements Closeable {
         }
     }
 
+    public int popBatch(Collection<? super T> target, int maxCount, long maxBytes) throws IOException {
+        try (SerializerPool<T>.Slot slot = pool.acquire()) {
+            return slot.popBatch(queue, target, maxCount, maxBytes);
+        }
+    }
+
     public void push(T obj) throws IOException {
         try (SerializerPool<T>.Slot slot = pool.acquire()) {
             slot.push(queue, obj);
         }
     }
 
+    public CompletableFuture<Void> pushAsync(T obj) throws IOException {
+        try (SerializerPool<T>.Slot slot = pool.acquire()) {
+            return slot.pushAsync(queue, obj);
+        }
+    }
+
+    public void pushAll(Collection<? extends T> objs) throws IOException {
+        try (SerializerPool<T>.Slot slot = pool.acquire()) {
+            slot.pushAll(queue, objs);
+        }
+    }
+
     public T peek() throws IOException {
         try (SerializerPool<T>.Slot slot = pool.acquire()) {
             return slot.peek(queue);
@@ -22,8 +22,34 @@ public interface RawQueue extends Closeable {
 
     boolean peek(Buffer buffer) throws IOException;
 
+    default int drainTo(BufferList target, int maxCount, long maxBytes) throws IOException {
+        int drained = 0;
+        long bytes = 0;
+        while (drained < maxCount && bytes < maxBytes) {
+            Buffer buffer = target.add();
+            if (!pop(buffer)) {
+                target.removeLast();
+                break;
+            }
+            bytes += buffer.count();
+            drained++;
+        }
+        return drained;
+    }
+
     void push(Buffer buffer) throws IOException;
 
+    default void pushBatch(BufferList batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                push(batch.get(i));
+            } catch (IOException e) {
+                if (i == 0) throw e;
+                throw new PartialBatchException(i, e);
+            }
+        }
+    }
+
     void flush() throws IOException;
 
     void close();
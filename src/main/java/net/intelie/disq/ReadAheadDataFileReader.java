@@ -0,0 +1,162 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+public class ReadAheadDataFileReader implements DataFileReader, Runnable {
+    private final DataFileReader delegate;
+    private final Buffer[] slots;
+    private final int[] reads;
+    private final IOException[] errors;
+    private final long maxBytes;
+    //records the delegate still holds, the file is fully written so this only goes down
+    private long remaining;
+    private int head;
+    private int count;
+    private long bytes;
+    private boolean running;
+    private boolean closed;
+
+    public ReadAheadDataFileReader(DataFileReader delegate, long records, int maxRecords, long maxBytes) {
+        this(delegate, records, newSlots(maxRecords), maxBytes);
+    }
+
+    //the slots are only touched while this reader is open, so a closed reader's slots can be handed to the next one
+    public ReadAheadDataFileReader(DataFileReader delegate, long records, Buffer[] slots, long maxBytes) {
+        this.delegate = delegate;
+        this.slots = slots;
+        this.reads = new int[slots.length];
+        this.errors = new IOException[slots.length];
+        this.maxBytes = maxBytes;
+        this.remaining = records;
+        schedule();
+    }
+
+    public static Buffer[] newSlots(int maxRecords) {
+        Buffer[] slots = new Buffer[Math.max(1, maxRecords)];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = new Buffer();
+        return slots;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return delegate.size();
+    }
+
+    @Override
+    public void limit(long end) {
+        //only fully written files are read ahead, their end is set on the delegate before it is wrapped
+    }
+
+    @Override
+    public int read(Buffer buffer) throws IOException {
+        return take(buffer, true);
+    }
+
+    @Override
+    public int peek(Buffer buffer) throws IOException {
+        return take(buffer, false);
+    }
+
+    private synchronized int take(Buffer buffer, boolean consume) throws IOException {
+        while (count == 0) {
+            if (!running && remaining <= 0)
+                return consume ? delegate.read(buffer) : delegate.peek(buffer);
+            if (!running)
+                schedule();
+            waitFill();
+        }
+
+        Buffer slot = slots[head];
+        IOException error = errors[head];
+        int read = reads[head];
+        if (error == null) {
+            buffer.setCount(slot.count(), false);
+            System.arraycopy(slot.buf(), 0, buffer.buf(), 0, slot.count());
+        }
+        if (consume || error != null) {
+            errors[head] = null;
+            bytes -= slot.count();
+            head = (head + 1) % slots.length;
+            count--;
+            if (!running && remaining > 0 && count <= slots.length / 2)
+                schedule();
+        }
+        if (error != null)
+            throw error;
+        return read;
+    }
+
+    private void waitFill() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        }
+    }
+
+    private void schedule() {
+        running = true;
+        BackgroundIo.submitReadAhead(this);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int index;
+            synchronized (this) {
+                if (closed || remaining <= 0 || count == slots.length || bytes >= maxBytes) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+                index = (head + count) % slots.length;
+            }
+
+            int read = 0;
+            IOException error = null;
+            try {
+                read = delegate.read(slots[index]);
+            } catch (IOException e) {
+                slots[index].setCount(0, false);
+                error = e;
+            }
+
+            synchronized (this) {
+                reads[index] = read;
+                errors[index] = error;
+                bytes += slots[index].count();
+                count++;
+                //a skipped record is still one record less, any other failure is left for the consumer to retry
+                if (error == null || error instanceof CorruptedRecordException) {
+                    remaining--;
+                } else {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            boolean interrupted = false;
+            while (running) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+}
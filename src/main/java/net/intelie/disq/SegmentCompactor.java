@@ -0,0 +1,68 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+
+public class SegmentCompactor implements Callable<Boolean> {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final Path source;
+    private final Path target;
+    private final int records;
+    private final long end;
+    private final boolean checksum;
+    private volatile boolean cancelled;
+
+    public SegmentCompactor(Path source, Path target, int records, boolean checksum) {
+        this(source, target, records, Long.MAX_VALUE, checksum);
+    }
+
+    public SegmentCompactor(Path source, Path target, int records, long end, boolean checksum) {
+        this.source = source;
+        this.target = target;
+        this.records = records;
+        this.end = end;
+        this.checksum = checksum;
+    }
+
+    public Path target() {
+        return target;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public Boolean call() throws IOException {
+        //true when target holds every record of source in at least 10% fewer bytes
+        long size = Math.min(end, Files.size(source));
+        long read = 0;
+        Buffer buffer = new Buffer();
+        try (DataFileReader reader = new CompressedDataFileReader(new StreamDataFileReader(source, 0), 0);
+             DataFileWriter writer = new CompressedDataFileWriter(new StreamDataFileWriter(target, 0, checksum),
+                     Deflater.BEST_COMPRESSION, BLOCK_SIZE)) {
+            for (int i = 0; i < records; i++) {
+                if (cancelled) return false;
+                read += reader.read(buffer);
+                writer.write(buffer);
+            }
+        }
+        if (cancelled || read != size || Files.size(target) >= size - size / 10)
+            return false;
+        //the target replaces the source, so its bytes must be on the device before the rename is
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        return true;
+    }
+}
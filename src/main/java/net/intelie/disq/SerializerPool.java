@@ -2,6 +2,8 @@ package net.intelie.disq;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 public class SerializerPool<T> {
@@ -25,6 +27,7 @@ public class SerializerPool<T> {
         private final ObjectPool<Slot>.Ref ref;
         private final Serializer<T> serializer;
         private final Buffer buffer;
+        private BufferList batch;
 
         public Slot(ObjectPool<Slot>.Ref ref) {
             this.ref = ref;
@@ -45,6 +48,29 @@ public class SerializerPool<T> {
             queue.push(buffer);
         }
 
+        public CompletableFuture<Void> pushAsync(InternalQueue queue, T obj) throws IOException {
+            buffer.clear();
+            serializer.serialize(buffer, obj);
+            return queue.pushAsync(buffer);
+        }
+
+        public void pushAll(InternalQueue queue, Collection<? extends T> objs) throws IOException {
+            BufferList batch = batch();
+            try {
+                for (T obj : objs)
+                    serializer.serialize(batch.add(), obj);
+                queue.pushBatch(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+
+        private BufferList batch() {
+            if (batch == null)
+                batch = new BufferList(initialBufferSize, maxBufferSize);
+            return batch;
+        }
+
         public T pop(InternalQueue queue) throws IOException {
             buffer.clear();
             if (!queue.pop(buffer))
@@ -52,6 +78,18 @@ public class SerializerPool<T> {
             return serializer.deserialize(buffer);
         }
 
+        public int popBatch(InternalQueue queue, Collection<? super T> target, int maxCount, long maxBytes) throws IOException {
+            BufferList batch = batch();
+            try {
+                int drained = queue.drainTo(batch, maxCount, maxBytes);
+                for (int i = 0; i < drained; i++)
+                    target.add(serializer.deserialize(batch.get(i)));
+                return drained;
+            } finally {
+                batch.clear();
+            }
+        }
+
         public T peek(InternalQueue queue) throws IOException {
             buffer.clear();
             if (!queue.peek(buffer))
@@ -0,0 +1,6 @@
+package net.intelie.disq;
+
+//readers of plain records, which can move past records that were read from somewhere else, such as the hot tail
+public interface SkippableDataFileReader extends DataFileReader {
+    void skip(long bytes);
+}
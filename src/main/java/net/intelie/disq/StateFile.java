@@ -15,40 +15,140 @@ public class StateFile implements Closeable {
     public static final long MIN_QUEUE_SIZE = MAX_FILES * 512;
     public static final long MAX_QUEUE_SIZE = MAX_FILES * (long) Integer.MAX_VALUE;
 
+    //states with any other number of files, or reading inside a compressed block, use the versioned layout,
+    //which starts with a negative magic
+    public static final int MAGIC = 0xD15C57A7;
+    public static final int VERSION = 3;
+    //also holds where the records of each full segment end, for segments that keep a preallocated length
+    public static final int VERSION_WITH_ENDS = 4;
+    public static final int HEADER_SIZE = 6 * 4 + 4 * 8;
+    private static final int V2_HEADER_SIZE = HEADER_SIZE - 4;
+    public static final int MIN_FILES = 2;
+    public static final int MAX_SEGMENTS = 4096;
+
     private final RandomAccessFile randomWrite;
-    private final ByteBuffer buffer = ByteBuffer.allocate(EXPECTED_SIZE);
     private final boolean readonly;
+    private ByteBuffer buffer;
+    private int files;
+    private int maxFileId;
     private int readFile, writeFile;
-    private int readPosition, writePosition;
+    private long readPosition, writePosition;
+    private int readSkip;
     private long count;
     private long bytes;
-    private final int[] fileCounts;
+    private int[] fileCounts;
+    private long[] fileEnds;
+    private boolean keepsEnds;
     private long unflushed;
+    private long unflushedBytes;
     private boolean dirty;
+    private boolean resized;
+    private boolean versioned;
 
     public StateFile(Path file, boolean readonly) throws IOException {
+        this(file, readonly, MAX_FILES);
+    }
+
+    public StateFile(Path file, boolean readonly, int files) throws IOException {
         this.readonly = readonly;
-        this.fileCounts = new int[MAX_FILES];
         this.randomWrite = readonly ? null : new RandomAccessFile(file.toFile(), "rw");
-        if (Files.exists(file) && Files.size(file) == EXPECTED_SIZE) {
-            try (DataInputStream stream = new DataInputStream(new FileInputStream(file.toFile()))) {
-                readFile = stream.readShort();
-                writeFile = stream.readShort();
-                readPosition = stream.readInt();
-                writePosition = stream.readInt();
-                count = stream.readLong();
-                bytes = stream.readLong();
-                for (int i = 0; i < MAX_FILES; i++)
-                    fileCounts[i] = stream.readInt();
-                unflushed = 0;
-                dirty = false;
-            }
-        } else {
+        if (!load(file)) {
+            resize(files);
             dirty = true;
+        } else if (files != this.files && count == 0 && !readonly) {
+            //an empty queue can safely switch to the configured layout, leftover files are collected later
+            resize(files);
+            clear();
         }
     }
 
-    public boolean isInUse(int file) {
+    public static int sizeFor(int files) {
+        return files == MAX_FILES ? EXPECTED_SIZE : HEADER_SIZE + files * 4;
+    }
+
+    private boolean load(Path file) throws IOException {
+        if (!Files.exists(file)) return false;
+        long size = Files.size(file);
+        if (size < 4) return false;
+        try (DataInputStream stream = new DataInputStream(new FileInputStream(file.toFile()))) {
+            int first = stream.readInt();
+            if (first == MAGIC) {
+                if (size < V2_HEADER_SIZE) return false;
+                int version = stream.readInt();
+                if (version != 2 && version != VERSION && version != VERSION_WITH_ENDS) return false;
+                int files = stream.readInt();
+                int header = version == 2 ? V2_HEADER_SIZE : HEADER_SIZE;
+                if (files < MIN_FILES || files > MAX_SEGMENTS || size != header + files * (version == VERSION_WITH_ENDS ? 12L : 4L))
+                    return false;
+                resize(files);
+                useVersionedLayout();
+                if (version == VERSION_WITH_ENDS)
+                    keepFileEnds();
+                readFile = stream.readInt();
+                writeFile = stream.readInt();
+                readPosition = stream.readLong();
+                writePosition = stream.readLong();
+                readSkip = version == 2 ? 0 : stream.readInt();
+            } else {
+                if (size != EXPECTED_SIZE) return false;
+                resize(MAX_FILES);
+                readFile = first >> 16;
+                writeFile = (short) first;
+                readPosition = unsigned(stream.readInt());
+                writePosition = unsigned(stream.readInt());
+            }
+            count = stream.readLong();
+            bytes = stream.readLong();
+            for (int i = 0; i < files; i++)
+                fileCounts[i] = stream.readInt();
+            if (keepsEnds)
+                for (int i = 0; i < files; i++)
+                    fileEnds[i] = stream.readLong();
+            unflushed = 0;
+            //a v2 state is rewritten in the current layout
+            dirty = size != buffer.capacity();
+            resized = dirty;
+            return true;
+        }
+    }
+
+    private void resize(int files) {
+        this.files = files;
+        this.maxFileId = (files == MAX_FILES ? Short.MAX_VALUE : Integer.MAX_VALUE) / files * files;
+        this.fileCounts = new int[files];
+        this.fileEnds = new long[files];
+        this.keepsEnds = false;
+        this.buffer = ByteBuffer.allocate(sizeFor(files));
+        this.versioned = files != MAX_FILES;
+        this.resized = true;
+    }
+
+    private void useVersionedLayout() {
+        if (versioned) return;
+        this.buffer = ByteBuffer.allocate(HEADER_SIZE + files * 4);
+        this.versioned = true;
+        this.resized = true;
+    }
+
+    public synchronized void keepFileEnds() {
+        //a segment that is not truncated when the writer moves on ends where its records do, not at its length
+        if (keepsEnds) return;
+        useVersionedLayout();
+        this.buffer = ByteBuffer.allocate(HEADER_SIZE + files * 12);
+        this.keepsEnds = true;
+        this.resized = true;
+        this.dirty = true;
+    }
+
+    private static long unsigned(int position) {
+        return position >= 0 ? position : position + (1L << 31);
+    }
+
+    public synchronized int getMaxFiles() {
+        return files;
+    }
+
+    public synchronized boolean isInUse(int file) {
         int readFile = getReadFile();
         int writeFile = getWriteFile();
         boolean same = sameFileReadWrite();
@@ -60,118 +160,202 @@ public class StateFile implements Closeable {
 
     }
 
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
         if (!dirty || readonly) return;
+        write(0, 0);
+        unflushed = 0;
+        unflushedBytes = 0;
+        dirty = false;
+    }
+
+    public synchronized void flushReads() throws IOException {
+        //records still in the writer are left out, so the stored state never points past what reached the file
+        //reads of such records, served by the hot tail, are only stored by the next full flush; until then
+        //a crash loses them like any other unflushed record
+        if (!dirty || readonly || sameFileReadWrite() && readPosition > writePosition - unflushedBytes) return;
+        write(unflushed, unflushedBytes);
+        dirty = unflushed > 0 || unflushedBytes != 0;
+    }
+
+    private void write(long pendingCount, long pendingBytes) throws IOException {
         buffer.position(0);
-        buffer.putShort((short) readFile);
-        buffer.putShort((short) writeFile);
-        buffer.putInt(readPosition);
-        buffer.putInt(writePosition);
-        buffer.putLong(count);
-        buffer.putLong(bytes);
-        for (int i = 0; i < MAX_FILES; i++)
-            buffer.putInt(fileCounts[i]);
+        if (!versioned) {
+            buffer.putShort((short) readFile);
+            buffer.putShort((short) writeFile);
+            buffer.putInt((int) readPosition);
+            buffer.putInt((int) (writePosition - pendingBytes));
+        } else {
+            buffer.putInt(MAGIC);
+            buffer.putInt(keepsEnds ? VERSION_WITH_ENDS : VERSION);
+            buffer.putInt(files);
+            buffer.putInt(readFile);
+            buffer.putInt(writeFile);
+            buffer.putLong(readPosition);
+            buffer.putLong(writePosition - pendingBytes);
+            buffer.putInt(readSkip);
+        }
+        buffer.putLong(count - pendingCount);
+        buffer.putLong(bytes - pendingBytes);
+        for (int i = 0; i < files; i++)
+            buffer.putInt(i == getWriteFile() ? fileCounts[i] - (int) pendingCount : fileCounts[i]);
+        if (keepsEnds)
+            for (int i = 0; i < files; i++)
+                buffer.putLong(fileEnds[i]);
 
         randomWrite.seek(0);
         randomWrite.write(buffer.array());
-        unflushed = 0;
-        dirty = false;
+        if (resized) {
+            randomWrite.setLength(buffer.capacity());
+            resized = false;
+        }
     }
 
-    public int getReadFile() {
-        return readFile % MAX_FILES;
+    public synchronized void sync() throws IOException {
+        if (randomWrite != null)
+            randomWrite.getChannel().force(false);
+    }
+
+    public synchronized int getReadFile() {
+        return readFile % files;
     }
 
-    public boolean sameFileReadWrite() {
+    public synchronized boolean sameFileReadWrite() {
         return readFile == writeFile;
     }
 
-    public int advanceReadFile(long oldBytes) {
+    public synchronized int advanceReadFile(long oldBytes) {
         int oldCount = fileCounts[getReadFile()];
         fileCounts[getReadFile()] = 0;
+        fileEnds[getReadFile()] = 0;
         count -= oldCount;
         bytes -= oldBytes;
         readFile++;
-        readFile %= MAX_FILE_ID;
+        readFile %= maxFileId;
         readPosition = 0;
+        readSkip = 0;
         dirty = true;
         return oldCount;
     }
 
-    public void advanceWriteFile() {
+    public synchronized void advanceWriteFile() {
+        //the writer is flushed before it moves on, so no record is left pending in the previous file
+        unflushed = unflushedBytes = 0;
+        if (keepsEnds)
+            fileEnds[getWriteFile()] = writePosition;
         writeFile++;
-        writeFile %= MAX_FILE_ID;
+        writeFile %= maxFileId;
         writePosition = 0;
         dirty = true;
 
     }
 
-    public long getReadPosition() {
-        return readPosition >= 0 ? readPosition : readPosition + (1L << 31);
+    public synchronized long getReadPosition() {
+        return readPosition;
     }
 
-    public int getWriteFile() {
-        return writeFile % MAX_FILES;
+    public synchronized int getReadSkip() {
+        return readSkip;
     }
 
-    public long getCount() {
+    public synchronized int getWriteFile() {
+        return writeFile % files;
+    }
+
+    public synchronized long getCount() {
         return count;
     }
 
-    public long getBytes() {
+    public synchronized long getBytes() {
         return bytes;
     }
 
-    public int getNumberOfFiles() {
+    public synchronized int getNumberOfFiles() {
         return (writeFile >= readFile ?
                 writeFile - readFile :
-                MAX_FILE_ID - readFile + writeFile) +
+                maxFileId - readFile + writeFile) +
                 (writePosition > 0 ? 1 : 0);
     }
 
-    public void addWriteCount(int bytes) {
+    public synchronized void addWriteCount(int bytes) {
         this.count += 1;
         this.unflushed += 1;
+        this.unflushedBytes += bytes;
         this.bytes += bytes;
         this.writePosition += bytes;
         this.fileCounts[getWriteFile()] += 1;
         this.dirty = true;
     }
 
-    public void addReadCount(int bytes) {
+    public synchronized void addWrittenBytes(long bytes) {
+        if (bytes == 0) return;
+        this.unflushedBytes += bytes;
+        this.bytes += bytes;
+        this.writePosition += bytes;
+        this.dirty = true;
+    }
+
+    public synchronized void releaseBytes(long bytes) {
+        this.bytes -= bytes;
+        this.dirty = true;
+    }
+
+    public synchronized void addReadCount(int bytes) {
         this.count -= 1;
         //does not decrement this.bytes, only when the file is deleted
         this.readPosition += bytes;
+        //records of a compressed block are read without advancing the position, until the last one
+        if (bytes == 0) {
+            this.readSkip += 1;
+            useVersionedLayout();
+        } else {
+            this.readSkip = 0;
+        }
         this.fileCounts[getReadFile()] -= 1;
         this.dirty = true;
     }
 
-    public void clear() {
+    public synchronized void skipCorrupted(long bytes, int remaining) {
+        //the damaged bytes may have held several records, only those still readable after them are kept
+        //records the writer still buffers are not in the file yet
+        if (sameFileReadWrite())
+            remaining += unflushed;
+        int lost = Math.max(0, fileCounts[getReadFile()] - remaining);
+        this.count -= lost;
+        this.fileCounts[getReadFile()] -= lost;
+        this.readPosition += bytes;
+        this.readSkip = 0;
+        this.dirty = true;
+    }
+
+    public synchronized void clear() {
         readFile = writeFile = 0;
         readPosition = writePosition = 0;
+        readSkip = 0;
         count = bytes = 0;
-        unflushed = 0;
-        for (int i = 0; i < MAX_FILES; i++)
+        unflushed = unflushedBytes = 0;
+        for (int i = 0; i < files; i++) {
             fileCounts[i] = 0;
+            fileEnds[i] = 0;
+        }
         dirty = true;
     }
 
-    public long getWritePosition() {
-        return writePosition >= 0 ? writePosition : writePosition + (1L << 31);
+    public synchronized long getWritePosition() {
+        return writePosition;
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         flush();
         if (randomWrite != null)
             randomWrite.close();
     }
 
-    public int getFileCount(int file) {
+    public synchronized int getFileCount(int file) {
         return fileCounts[file];
     }
 
-    public boolean fixCounts(long totalCount, long totalBytes) {
+    public synchronized boolean fixCounts(long totalCount, long totalBytes) {
         if (totalBytes != bytes || totalCount != count) {
             bytes = totalBytes;
             count = totalCount;
@@ -181,19 +365,33 @@ public class StateFile implements Closeable {
         return false;
     }
 
-    public boolean readFileEof() {
+    public synchronized boolean readFileEof() {
         return fileCounts[getReadFile()] <= 0;
     }
 
-    public long getFlushedCount() {
+    public synchronized long getReadLimit() {
+        if (sameFileReadWrite())
+            return writePosition - unflushedBytes;
+        long end = fileEnds[getReadFile()];
+        return end > 0 ? end : Long.MAX_VALUE;
+    }
+
+    public synchronized long getFileBytes(int file, long length) {
+        //no end is kept for a file truncated to its records, or written before the ends were kept
+        long end = fileEnds[file];
+        return end > 0 ? Math.min(end, length) : length;
+    }
+
+    public synchronized long getFlushedCount() {
         return count - unflushed;
     }
 
-    public long getUnflushedCount() {
+    public synchronized long getUnflushedCount() {
         return unflushed;
     }
 
-    public boolean needsFlushBeforePop() {
-        return unflushed > 0 && unflushed == count;
+    public synchronized boolean needsFlushBeforePop() {
+        //below unflushed once records still in the writer were read from the hot tail
+        return count > 0 && count <= unflushed;
     }
 }
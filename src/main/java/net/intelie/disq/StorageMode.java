@@ -0,0 +1,44 @@
+package net.intelie.disq;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public enum StorageMode {
+    STREAM {
+        @Override
+        public DataFileReader openReader(Path file, long position) throws IOException {
+            return new StreamDataFileReader(file, position);
+        }
+
+        @Override
+        public DataFileWriter openWriter(Path file, long position, long limit, boolean checksummed, boolean preallocate) throws IOException {
+            return new StreamDataFileWriter(file, position, limit, checksummed, preallocate);
+        }
+    },
+    MAPPED {
+        @Override
+        public DataFileReader openReader(Path file, long position) throws IOException {
+            return new MappedDataFileReader(file, position);
+        }
+
+        @Override
+        public DataFileWriter openWriter(Path file, long position, long limit, boolean checksummed, boolean preallocate) throws IOException {
+            return new MappedDataFileWriter(file, position, limit, checksummed, preallocate);
+        }
+    },
+    DIRECT {
+        @Override
+        public DataFileReader openReader(Path file, long position) throws IOException {
+            return new StreamDataFileReader(file, position, true);
+        }
+
+        @Override
+        public DataFileWriter openWriter(Path file, long position, long limit, boolean checksummed, boolean preallocate) throws IOException {
+            return new DirectDataFileWriter(file, position, limit, checksummed, preallocate);
+        }
+    };
+
+    public abstract DataFileReader openReader(Path file, long position) throws IOException;
+
+    public abstract DataFileWriter openWriter(Path file, long position, long limit, boolean checksummed, boolean preallocate) throws IOException;
+}
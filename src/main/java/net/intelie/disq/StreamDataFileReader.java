@@ -0,0 +1,274 @@
+package net.intelie.disq;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+public class StreamDataFileReader implements SkippableDataFileReader {
+    private final Path file;
+    private final boolean direct;
+    private final FileChannel channel;
+    private final boolean checksummed;
+    private final Checksum checksum;
+    //holds the file bytes starting at position, buffer index 0 is at file offset position - buffer.position()
+    private ByteBuffer buffer;
+    private final ByteBuffer[] scatter = new ByteBuffer[2];
+    private byte[] wrappedArray;
+    private ByteBuffer wrapped;
+    private long position;
+    private long knownSize;
+    private long limit = Long.MAX_VALUE;
+    private ByteBuffer scratch;
+
+    public StreamDataFileReader(Path file, long position) throws IOException {
+        this(file, position, false);
+    }
+
+    public StreamDataFileReader(Path file, long position, boolean direct) throws IOException {
+        this.file = file;
+        this.direct = direct;
+        channel = direct ? DirectIo.open(file, StandardOpenOption.READ) : FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            checksummed = direct ? isChecksummed(file) : DataFileFormat.isChecksummed(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        checksum = checksummed ? DataFileFormat.newChecksum() : null;
+        buffer = DirectBufferPool.acquire();
+        seek(position);
+    }
+
+    private static boolean isChecksummed(Path file) throws IOException {
+        //the header and the recovery scan read unaligned, so they go through the page cache
+        try (FileChannel plain = FileChannel.open(file, StandardOpenOption.READ)) {
+            return DataFileFormat.isChecksummed(plain);
+        }
+    }
+
+    private void seek(long position) {
+        this.position = position;
+        buffer.clear().limit(0);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void limit(long end) {
+        //keeps read-ahead from caching bytes past the written end of a preallocated or block-padded file
+        this.limit = end;
+    }
+
+    @Override
+    public void skip(long bytes) {
+        if (bytes <= buffer.remaining()) {
+            buffer.position(buffer.position() + (int) bytes);
+            position += bytes;
+        } else {
+            seek(position + bytes);
+        }
+    }
+
+    @Override
+    public int read(Buffer buffer) throws IOException {
+        return checksummed ? readChecksummed(buffer, false) : internalRead(buffer, false);
+    }
+
+    @Override
+    public int peek(Buffer buffer) throws IOException {
+        return checksummed ? readChecksummed(buffer, true) : internalRead(buffer, true);
+    }
+
+    private int internalRead(Buffer buffer, boolean peek) throws IOException {
+        long start = position;
+        int size = readInt();
+        buffer.setCount(size, false);
+        readFully(buffer.buf(), 0, size);
+
+        if (peek)
+            rewind(start);
+        return DataFileWriter.OVERHEAD + size;
+    }
+
+    private int readChecksummed(Buffer buffer, boolean peek) throws IOException {
+        long start = position;
+        int overhead = DataFileFormat.CHECKSUMMED_OVERHEAD;
+        if (!ensure(overhead))
+            throw corrupted(start, peek);
+        int marker = this.buffer.getInt();
+        int size = this.buffer.getInt();
+        int expected = this.buffer.getInt();
+        position += overhead;
+
+        if (marker != DataFileFormat.SYNC_MARKER || !fits(start, size))
+            throw corrupted(start, peek);
+        //a record that would grow the target is checked first, so a damaged size never sizes an allocation
+        if (size > buffer.currentCapacity() && !isValidRecord(start))
+            throw corrupted(start, peek);
+
+        buffer.setCount(size, false);
+        readFully(buffer.buf(), 0, size);
+
+        if (DataFileFormat.checksum(checksum, size, buffer.buf(), 0) != expected)
+            throw corrupted(start, peek);
+
+        if (peek)
+            rewind(start);
+        return overhead + size;
+    }
+
+    private int readInt() throws IOException {
+        if (!ensure(4))
+            throw new EOFException();
+        position += 4;
+        return buffer.getInt();
+    }
+
+    private void readFully(byte[] dest, int offset, int length) throws IOException {
+        if (!direct && length - buffer.remaining() > buffer.capacity() / 2) {
+            readScattering(dest, offset, length);
+            return;
+        }
+        while (length > 0) {
+            if (!buffer.hasRemaining() && !ensure(1))
+                throw new EOFException();
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.get(dest, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void readScattering(byte[] dest, int offset, int length) throws IOException {
+        //the rest of a large payload goes straight to its destination and the same call refills the buffer
+        int buffered = buffer.remaining();
+        buffer.get(dest, offset, buffered);
+        long end = position + length;
+        position += buffered;
+
+        ByteBuffer target = wrap(dest);
+        target.limit(offset + length).position(offset + buffered);
+        buffer.clear();
+        buffer.limit((int) Math.max(0, Math.min(buffer.capacity(), limit - end)));
+        scatter[0] = target;
+        scatter[1] = buffer;
+        try {
+            channel.position(position);
+            while (target.hasRemaining())
+                if (channel.read(scatter) < 0)
+                    throw new EOFException();
+        } catch (IOException e) {
+            seek(position);
+            throw e;
+        } finally {
+            scatter[0] = null;
+        }
+        buffer.flip();
+        position = end;
+    }
+
+    private ByteBuffer wrap(byte[] array) {
+        if (array != wrappedArray) {
+            wrappedArray = array;
+            wrapped = ByteBuffer.wrap(array);
+        }
+        wrapped.clear();
+        return wrapped;
+    }
+
+    private boolean ensure(int needed) throws IOException {
+        if (buffer.remaining() >= needed)
+            return true;
+        if (direct)
+            return refillAligned(needed);
+        long end = position + buffer.remaining();
+        buffer.compact();
+        buffer.limit((int) Math.max(buffer.position(), Math.min(buffer.capacity(), buffer.position() + limit - end)));
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, end);
+            if (read <= 0) break;
+            end += read;
+        }
+        buffer.flip();
+        return buffer.remaining() >= needed;
+    }
+
+    private boolean refillAligned(int needed) throws IOException {
+        //reads start at the block holding position, so up to one block is read again
+        long start = DirectIo.alignDown(position);
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, start + buffer.position());
+            if (read <= 0 || read % DirectIo.BLOCK_SIZE != 0) break;
+        }
+        int read = buffer.position();
+        int offset = (int) (position - start);
+        buffer.limit((int) Math.max(offset, Math.min(read, limit - start)));
+        buffer.position(offset);
+        return buffer.remaining() >= needed;
+    }
+
+    private void rewind(long start) {
+        long back = position - start;
+        if (back <= buffer.position())
+            buffer.position((int) (buffer.position() - back));
+        else
+            seek(start);
+        position = start;
+    }
+
+    private boolean fits(long start, int size) throws IOException {
+        long needed = start + DataFileFormat.CHECKSUMMED_OVERHEAD + (long) size;
+        if (needed > knownSize)
+            knownSize = size();
+        return size >= 0 && needed <= Math.min(knownSize, limit);
+    }
+
+    private IOException corrupted(long start, boolean peek) throws IOException {
+        if (peek) {
+            rewind(start);
+            return new IOException("Corrupted record at position " + start);
+        }
+        long next = findNextRecord(start + 1);
+        seek(next);
+        return new CorruptedRecordException(start, next - start);
+    }
+
+    private boolean isValidRecord(long start) throws IOException {
+        if (scratch == null)
+            scratch = ByteBuffer.allocate(DataFileFormat.SCAN_CHUNK);
+        long end = Math.min(knownSize, limit);
+        if (!direct)
+            return DataFileFormat.isValidRecord(channel, start, end, checksum, scratch);
+        try (FileChannel plain = FileChannel.open(file, StandardOpenOption.READ)) {
+            return DataFileFormat.isValidRecord(plain, start, end, checksum, scratch);
+        }
+    }
+
+    private long findNextRecord(long from) throws IOException {
+        if (!direct)
+            return DataFileFormat.findNextRecord(channel, from, limit, checksum);
+        try (FileChannel plain = FileChannel.open(file, StandardOpenOption.READ)) {
+            return DataFileFormat.findNextRecord(plain, from, limit, checksum);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (buffer != null)
+                DirectBufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
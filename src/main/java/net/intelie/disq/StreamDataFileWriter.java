@@ -0,0 +1,139 @@
+package net.intelie.disq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+public class StreamDataFileWriter implements DataFileWriter {
+    private final FileChannel channel;
+    private final boolean checksummed;
+    private final Checksum checksum;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private ByteBuffer buffer;
+    private byte[] wrappedArray;
+    private ByteBuffer wrapped;
+    private long written;
+
+    public StreamDataFileWriter(Path file, long position, boolean checksummed) throws IOException {
+        this(file, position, 0, checksummed, false);
+    }
+
+    public StreamDataFileWriter(Path file, long position, long limit, boolean checksummed, boolean preallocate) throws IOException {
+        this.checksummed = setLength(file.toFile(), position, preallocate ? limit : 0) ? checksummed : isChecksummed(file.toFile());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.position(position);
+        this.written = position;
+        this.checksum = this.checksummed ? DataFileFormat.newChecksum() : null;
+        this.buffer = DirectBufferPool.acquire();
+    }
+
+    static boolean setLength(File file, long size, long preallocated) throws IOException {
+        long length;
+        try (RandomAccessFile rand = new RandomAccessFile(file, "rws")) {
+            //a preallocated file keeps its length across uses, the state tells where its records end
+            if (preallocated <= 0 || rand.length() < size)
+                rand.setLength(size);
+            length = rand.length();
+        }
+        if (length < preallocated) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                DataFileFormat.allocate(channel, length, preallocated);
+            }
+        }
+        return size == 0;
+    }
+
+    static boolean isChecksummed(File file) throws IOException {
+        try (RandomAccessFile rand = new RandomAccessFile(file, "r")) {
+            return DataFileFormat.isChecksummed(rand.getChannel());
+        }
+    }
+
+    @Override
+    public int write(Buffer buffer) throws IOException {
+        int size = buffer.count();
+        ensure(DataFileFormat.CHECKSUMMED_OVERHEAD);
+        if (checksummed) {
+            this.buffer.putInt(DataFileFormat.SYNC_MARKER);
+            this.buffer.putInt(size);
+            this.buffer.putInt(DataFileFormat.checksum(checksum, size, buffer.buf(), 0));
+        } else {
+            this.buffer.putInt(size);
+        }
+
+        if (size <= this.buffer.remaining())
+            this.buffer.put(buffer.buf(), 0, size);
+        else
+            writeGathering(buffer.buf(), size);
+        return size + DataFileFormat.overhead(checksummed);
+    }
+
+    private void writeGathering(byte[] payload, int size) throws IOException {
+        //staged bytes and a payload that does not fit go to the file in a single call, without copying the payload
+        buffer.flip();
+        gather[0] = buffer;
+        gather[1] = wrap(payload, size);
+        try {
+            while (gather[1].hasRemaining())
+                written += channel.write(gather);
+        } finally {
+            gather[1] = null;
+            buffer.clear();
+        }
+    }
+
+    private ByteBuffer wrap(byte[] array, int size) {
+        if (array != wrappedArray) {
+            wrappedArray = array;
+            wrapped = ByteBuffer.wrap(array);
+        }
+        wrapped.clear();
+        wrapped.limit(size);
+        return wrapped;
+    }
+
+    private void ensure(int needed) throws IOException {
+        if (buffer.remaining() < needed)
+            flush();
+    }
+
+    @Override
+    public long position() {
+        return written;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffer == null) return;
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                written += channel.write(buffer);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) return;
+        try {
+            flush();
+        } finally {
+            channel.close();
+            if (buffer != null)
+                DirectBufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
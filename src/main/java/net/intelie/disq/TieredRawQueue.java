@@ -0,0 +1,168 @@
+package net.intelie.disq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+public class TieredRawQueue implements RawQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredRawQueue.class);
+
+    private final ArrayRawQueue memory;
+    private final RawQueue disk;
+    private final BufferList spill = new BufferList();
+    private long spills;
+    //guarded by this, pushes that chose the disk tier and did not return yet
+    private long diskPending;
+
+    public TieredRawQueue(int memoryBytes, RawQueue disk) {
+        this.memory = new ArrayRawQueue(memoryBytes);
+        this.disk = disk;
+    }
+
+    public ArrayRawQueue memoryQueue() {
+        return memory;
+    }
+
+    public RawQueue diskQueue() {
+        return disk;
+    }
+
+    public synchronized long spills() {
+        return spills;
+    }
+
+    @Override
+    public void reopen() {
+        disk.reopen();
+    }
+
+    @Override
+    public long bytes() {
+        return memory.bytes() + disk.bytes();
+    }
+
+    @Override
+    public long count() {
+        return memory.count() + disk.count();
+    }
+
+    @Override
+    public long remainingBytes() {
+        //the memory tier spills into the disk one, so only the disk bounds what still fits
+        return disk.remainingBytes() - memory.bytes();
+    }
+
+    @Override
+    public long remainingCount() {
+        return disk.remainingCount();
+    }
+
+    @Override
+    public void touch() throws IOException {
+        disk.touch();
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        memory.clear();
+        disk.clear();
+    }
+
+    //records in memory are always older than those on disk, so pops take from memory first
+    @Override
+    public boolean pop(Buffer buffer) throws IOException {
+        return memory.pop(buffer) || disk.pop(buffer);
+    }
+
+    @Override
+    public boolean peek(Buffer buffer) throws IOException {
+        return memory.peek(buffer) || disk.peek(buffer);
+    }
+
+    @Override
+    public int drainTo(BufferList target, int maxCount, long maxBytes) throws IOException {
+        int drained = memory.drainTo(target, maxCount, maxBytes);
+        if (drained > 0)
+            return drained;
+        return disk.drainTo(target, maxCount, maxBytes);
+    }
+
+    //only choosing the tier and touching the memory one are locked, so producers share the disk's group commit
+    @Override
+    public void push(Buffer buffer) throws IOException {
+        synchronized (this) {
+            if (fitsInMemory(buffer.count() + 4L)) {
+                memory.push(buffer);
+                return;
+            }
+            spillMemory();
+            diskPending++;
+        }
+        try {
+            disk.push(buffer);
+        } finally {
+            diskPushed();
+        }
+    }
+
+    @Override
+    public void pushBatch(BufferList batch) throws IOException {
+        synchronized (this) {
+            if (fitsInMemory(batch.bytes() + 4L * batch.size())) {
+                memory.pushBatch(batch);
+                return;
+            }
+            spillMemory();
+            diskPending++;
+        }
+        try {
+            disk.pushBatch(batch);
+        } finally {
+            diskPushed();
+        }
+    }
+
+    private synchronized void diskPushed() {
+        diskPending--;
+    }
+
+    private boolean fitsInMemory(long bytes) {
+        //once anything is on disk, or on its way there, new records follow it until consumers catch up
+        return diskPending == 0 && disk.count() == 0 && memory.remainingBytes() >= bytes;
+    }
+
+    private void spillMemory() throws IOException {
+        //holding the memory tier keeps consumers from popping a newer record while older ones are moving
+        synchronized (memory) {
+            if (memory.count() == 0) return;
+            spill.clear();
+            memory.drainTo(spill, Integer.MAX_VALUE, Long.MAX_VALUE);
+            try {
+                disk.pushBatch(spill);
+                spills++;
+            } catch (IOException e) {
+                for (int i = PartialBatchException.written(e); i < spill.size(); i++)
+                    memory.push(spill.get(i));
+                throw e;
+            } finally {
+                spill.clear();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        disk.flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            spillMemory();
+        } catch (IOException e) {
+            LOGGER.info("Error spilling memory tier to disk on close", e);
+        }
+        disk.close();
+    }
+}
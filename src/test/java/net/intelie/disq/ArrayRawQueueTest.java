@@ -50,6 +50,22 @@ public class ArrayRawQueueTest {
         }
     }
 
+    @Test
+    public void testDrainTo() throws Exception {
+        ArrayRawQueue queue = new ArrayRawQueue(200);
+        for (int i = 0; i < 10; i++)
+            push(queue, "test" + i);
+
+        BufferList batch = new BufferList();
+        assertThat(queue.drainTo(batch, 4, Long.MAX_VALUE)).isEqualTo(4);
+        assertThat(queue.drainTo(batch, 10, 10)).isEqualTo(2);
+        assertThat(queue.drainTo(batch, 10, Long.MAX_VALUE)).isEqualTo(4);
+        assertThat(queue.count()).isEqualTo(0);
+
+        for (int i = 0; i < 10; i++)
+            assertThat(new String(batch.get(i).toArray(), StandardCharsets.UTF_8)).isEqualTo("test" + i);
+    }
+
     @Test
     public void testClear() throws Exception {
         ArrayRawQueue queue = new ArrayRawQueue(200);
@@ -122,6 +138,37 @@ public class ArrayRawQueueTest {
         assertThat(pop(queue)).isEqualTo(null);
     }
 
+    @Test
+    public void testGrowsUpToMaxSize() throws Exception {
+        ArrayRawQueue queue = new ArrayRawQueue(16, 200);
+        assertThat(queue.capacity()).isEqualTo(16);
+        assertThat(queue.remainingBytes()).isEqualTo(200);
+
+        push(queue, "a1");
+        push(queue, "a2");
+        assertThat(pop(queue)).isEqualTo("a1");
+        push(queue, "a3");
+        assertThat(queue.capacity()).isEqualTo(16);
+
+        //the wrapped records are laid out again from the start of the larger buffer
+        push(queue, "abcdefghij");
+        assertThat(queue.capacity()).isEqualTo(32);
+        assertThat(pop(queue)).isEqualTo("a2");
+        assertThat(peek(queue)).isEqualTo("a3");
+        assertThat(pop(queue)).isEqualTo("a3");
+        assertThat(pop(queue)).isEqualTo("abcdefghij");
+
+        for (int i = 0; i < 30; i++)
+            push(queue, "test" + String.format((Locale) null, "%02x", i));
+        assertThat(queue.capacity()).isEqualTo(200);
+        assertThat(queue.count()).isEqualTo(20);
+        for (int i = 10; i < 30; i++)
+            assertThat(pop(queue)).isEqualTo("test" + String.format((Locale) null, "%02x", i));
+
+        queue.clear();
+        assertThat(queue.capacity()).isEqualTo(16);
+    }
+
     private void push(ArrayRawQueue queue, String s) throws IOException {
         queue.push(new Buffer(s.getBytes(StandardCharsets.UTF_8)));
     }
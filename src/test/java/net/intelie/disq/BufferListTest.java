@@ -0,0 +1,45 @@
+package net.intelie.disq;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BufferListTest {
+    @Test
+    public void reusesBuffersAfterClear() {
+        BufferList list = new BufferList(16, 100);
+
+        Buffer first = list.add();
+        first.write().write(new byte[10]);
+        Buffer second = list.add();
+        second.write().write(new byte[20]);
+
+        assertThat(list.size()).isEqualTo(2);
+        assertThat(list.bytes()).isEqualTo(30);
+        assertThat(list.get(1)).isSameAs(second);
+
+        list.clear();
+        assertThat(list.size()).isEqualTo(0);
+        assertThat(list.bytes()).isEqualTo(0);
+
+        assertThat(list.add()).isSameAs(first);
+        assertThat(first.count()).isEqualTo(0);
+        assertThatThrownBy(() -> list.get(1)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    @Test
+    public void removeLastDiscardsOnlyTheLastBuffer() {
+        BufferList list = new BufferList();
+        Buffer first = list.add();
+        list.add();
+        list.removeLast();
+
+        assertThat(list.size()).isEqualTo(1);
+        assertThat(list.get(0)).isSameAs(first);
+
+        list.removeLast();
+        list.removeLast();
+        assertThat(list.size()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,90 @@
+package net.intelie.disq;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DataFileFormatTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void pureCrc32cMatchesKnownVector() {
+        Checksum checksum = new DataFileFormat.PureCrc32c();
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        checksum.update(data, 0, data.length);
+        assertThat(checksum.getValue()).isEqualTo(0xE3069283L);
+
+        checksum.reset();
+        for (byte b : data)
+            checksum.update(b);
+        assertThat(checksum.getValue()).isEqualTo(0xE3069283L);
+    }
+
+    @Test
+    public void availableChecksumMatchesPureImplementation() {
+        byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+
+        for (int size : new int[]{0, 1, 7, 100, 10000}) {
+            int expected = DataFileFormat.checksum(new DataFileFormat.PureCrc32c(), size, data, 0);
+            assertThat(DataFileFormat.checksum(DataFileFormat.newChecksum(), size, data, 0)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void syncMarkerIsNeverAValidSize() {
+        assertThat(DataFileFormat.SYNC_MARKER).isNegative();
+        assertThat(DataFileFormat.overhead(true)).isEqualTo(12);
+        assertThat(DataFileFormat.overhead(false)).isEqualTo(DataFileWriter.OVERHEAD);
+    }
+
+    @Test
+    public void resynchronizationNeverPassesTheEnd() throws Exception {
+        Path file = temp.getRoot().toPath().resolve("data00");
+        try (StreamDataFileWriter writer = new StreamDataFileWriter(file, 0, true)) {
+            for (int i = 0; i < 3; i++)
+                writer.write(new Buffer(new byte[]{1, 2, 3, 4}));
+        }
+        long record = DataFileFormat.CHECKSUMMED_OVERHEAD + 4;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertThat(DataFileFormat.findNextRecord(channel, 1, Long.MAX_VALUE, DataFileFormat.newChecksum())).isEqualTo(record);
+            assertThat(DataFileFormat.findNextRecord(channel, 1, 2 * record - 1, DataFileFormat.newChecksum())).isEqualTo(2 * record - 1);
+            assertThat(DataFileFormat.countRecords(file, record, 2 * record, false)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void damagedSizeIsCheckedBeforeGrowingTheTarget() throws Exception {
+        Path file = temp.getRoot().toPath().resolve("data00");
+        try (StreamDataFileWriter writer = new StreamDataFileWriter(file, 0, true)) {
+            for (int i = 0; i < 3; i++)
+                writer.write(new Buffer(new byte[]{1, 2, 3, 4}));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 20}), 4);
+        }
+
+        try (DataFileReader stream = new StreamDataFileReader(file, 0);
+             DataFileReader mapped = new MappedDataFileReader(file, 0)) {
+            for (DataFileReader reader : new DataFileReader[]{stream, mapped}) {
+                Buffer buffer = new Buffer(8, 8);
+                assertThatThrownBy(() -> reader.read(buffer)).isInstanceOf(CorruptedRecordException.class);
+                assertThat(reader.read(buffer)).isEqualTo(16);
+                assertThat(buffer.toArray()).containsExactly(1, 2, 3, 4);
+            }
+        }
+    }
+}
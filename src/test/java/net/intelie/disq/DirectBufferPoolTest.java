@@ -0,0 +1,35 @@
+package net.intelie.disq;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DirectBufferPoolTest {
+    @Test
+    public void reusesReleasedBuffers() {
+        ByteBuffer first = DirectBufferPool.acquire();
+        assertThat(first.isDirect()).isTrue();
+        assertThat(first.capacity()).isEqualTo(DirectBufferPool.BUFFER_SIZE);
+
+        first.putInt(42);
+        DirectBufferPool.release(first);
+        ByteBuffer second = DirectBufferPool.acquire();
+        assertThat(second).isSameAs(first);
+        assertThat(second.position()).isEqualTo(0);
+        assertThat(second.remaining()).isEqualTo(DirectBufferPool.BUFFER_SIZE);
+        DirectBufferPool.release(second);
+    }
+
+    @Test
+    public void keepsAtMostMaxIdle() {
+        ByteBuffer[] buffers = new ByteBuffer[DirectBufferPool.MAX_IDLE + 2];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = DirectBufferPool.acquire();
+        for (ByteBuffer buffer : buffers)
+            DirectBufferPool.release(buffer);
+
+        assertThat(DirectBufferPool.idle()).isEqualTo(DirectBufferPool.MAX_IDLE);
+    }
+}
@@ -36,6 +36,27 @@ public class DiskQueueReaderTest {
         }
     }
 
+    @Test
+    public void canReadCompressed() throws IOException {
+        Path path = temp.getRoot().toPath();
+        try (DiskRawQueue queue = new DiskRawQueue(path, 512 * 121, new DiskRawQueueOptions().setCompression(true).setFlushOnPush(false))) {
+            for (int i = 0; i < 10; i++)
+                push(queue, "test" + i);
+            queue.flush();
+            assertThat(pop(queue)).isEqualTo("test0");
+        }
+
+        try (DiskQueueReader reader = new DiskQueueReader(path)) {
+            assertThat(reader.count()).isEqualTo(9);
+            Buffer buffer = new Buffer();
+            for (int i = 1; i < 10; i++) {
+                assertThat(reader.moveNext(buffer)).isTrue();
+                assertBuffer(buffer, "test" + i);
+            }
+            assertThat(reader.moveNext(buffer)).isFalse();
+        }
+    }
+
     private void assertBuffer(Buffer buffer, String s) {
         assertThat(new String(buffer.buf(), 0, buffer.count(), StandardCharsets.UTF_8)).isEqualTo(s);
     }
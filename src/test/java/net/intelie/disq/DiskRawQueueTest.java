@@ -1,6 +1,7 @@
 package net.intelie.disq;
 
 import com.google.common.base.Strings;
+import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -9,10 +10,17 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -347,6 +355,830 @@ public class DiskRawQueueTest {
     }
 
 
+    @Test
+    public void testMappedSpanningMultipleFiles() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512,
+                new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED));
+
+        String s = Strings.repeat("a", 512);
+
+        for (int i = 0; i < 5; i++)
+            push(queue, s);
+
+        for (int i = 0; i < 4; i++)
+            assertThat(new File(temp.getRoot(), "data0" + i).length()).isEqualTo(516);
+        assertThat(queue.bytes()).isEqualTo(5 * 516);
+
+        assertThat(peek(queue)).isEqualTo(s);
+        for (int i = 0; i < 5; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(pop(queue)).isNull();
+
+        assertThat(temp.getRoot().list()).containsOnly("state");
+        assertThat(queue.bytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMappedWriteThenStreamRead() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1000,
+                new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED));
+
+        for (int i = 0; i < 20; i++)
+            push(queue, "test" + i);
+        for (int i = 0; i < 5; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+        queue.close();
+
+        assertThat(new File(temp.getRoot(), "data00").length()).isEqualTo(190);
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+        for (int i = 5; i < 10; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+        queue.close();
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 1000,
+                new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED));
+        for (int i = 20; i < 25; i++)
+            push(queue, "test" + i);
+        for (int i = 10; i < 25; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+        assertThat(queue.count()).isEqualTo(0);
+        queue.close();
+    }
+
+    @Test
+    public void testMappedDiscardsUnflushedBytesOnReopen() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121,
+                new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED));
+        push(queue, "abc");
+        queue.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(temp.getRoot(), "data00"), "rw")) {
+            file.setLength(4096);
+        }
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121,
+                new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED));
+        assertBytesAndCount(queue, 7, 1);
+        push(queue, "def");
+        assertThat(pop(queue)).isEqualTo("abc");
+        assertThat(pop(queue)).isEqualTo("def");
+        queue.close();
+        assertThat(new File(temp.getRoot(), "data00").length()).isEqualTo(14);
+    }
+
+    @Test
+    public void testFsyncOnEachPush() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1000,
+                new DiskRawQueueOptions().setFsync(true));
+
+        for (int i = 0; i < 10; i++)
+            push(queue, "test" + i);
+        assertThat(queue.syncCount()).isEqualTo(10);
+        assertStateFile(temp.getRoot(), 0, 0, 0, 90, 10, 90, 10, 0, 0);
+
+        queue.flush();
+        assertThat(queue.syncCount()).isEqualTo(11);
+        queue.close();
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+        for (int i = 0; i < 10; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+    }
+
+    @Test
+    public void testFsyncWithoutFlushOnPushOnlySyncsOnFlush() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1000,
+                new DiskRawQueueOptions().setFsync(true).setFlushOnPush(false));
+
+        for (int i = 0; i < 10; i++)
+            push(queue, "test" + i);
+        assertThat(queue.syncCount()).isEqualTo(0);
+
+        queue.flush();
+        assertThat(queue.syncCount()).isEqualTo(1);
+        assertStateFile(temp.getRoot(), 0, 0, 0, 90, 10, 90, 10, 0, 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testFsyncGroupCommitsConcurrentPushes() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 10000000,
+                new DiskRawQueueOptions().setFsync(true));
+
+        int threads = 8, perThread = 200;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++)
+                        push(queue, "test");
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : producers)
+            thread.join();
+
+        assertThat(error.get()).isNull();
+        assertThat(queue.count()).isEqualTo(threads * perThread);
+        assertThat(queue.syncCount()).isLessThanOrEqualTo(threads * perThread);
+        for (int i = 0; i < threads * perThread; i++)
+            assertThat(pop(queue)).isEqualTo("test");
+    }
+
+    @Test(timeout = 20000)
+    public void testConcurrentProducerAndConsumer() throws Exception {
+        for (boolean flushOnPush : new boolean[]{true, false}) {
+            DiskRawQueue queue = new DiskRawQueue(temp.newFolder().toPath(), 10000000,
+                    new DiskRawQueueOptions().setFlushOnPush(flushOnPush).setSegmentSize(4096));
+
+            int total = 20000;
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < total; i++)
+                        push(queue, "test" + i);
+                    queue.flush();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            producer.start();
+
+            for (int i = 0; i < total; ) {
+                String value = pop(queue);
+                if (value == null) {
+                    assertThat(error.get()).isNull();
+                    continue;
+                }
+                assertThat(value).isEqualTo("test" + i++);
+            }
+            producer.join();
+
+            assertThat(error.get()).isNull();
+            assertThat(pop(queue)).isNull();
+            assertThat(queue.count()).isEqualTo(0);
+            queue.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testConcurrentMappedAppends() throws Exception {
+        for (boolean checksum : new boolean[]{true, false}) {
+            Path dir = temp.newFolder().toPath();
+            DiskRawQueueOptions options = new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED)
+                    .setChecksum(checksum).setSegmentSize(4096).setConcurrentAppends(true);
+            DiskRawQueue queue = new DiskRawQueue(dir, 10000000, options);
+
+            int threads = 8, perThread = 500;
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> producers = new ArrayList<>();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            for (int t = 0; t < threads; t++) {
+                int producer = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++)
+                            push(queue, producer + ":" + i);
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                });
+                thread.start();
+                producers.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : producers)
+                thread.join();
+            assertThat(error.get()).isNull();
+            queue.close();
+
+            DiskRawQueue reopened = new DiskRawQueue(dir, 10000000, options);
+            assertThat(reopened.count()).isEqualTo(threads * perThread);
+            int[] next = new int[threads];
+            for (int i = 0; i < threads * perThread; i++) {
+                String[] value = pop(reopened).split(":");
+                int producer = Integer.parseInt(value[0]);
+                assertThat(Integer.parseInt(value[1])).isEqualTo(next[producer]++);
+            }
+            assertThat(pop(reopened)).isNull();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testFailedConcurrentAppendIsNeverRead() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED)
+                .setChecksum(true).setConcurrentAppends(true);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1000000, options);
+        push(queue, "test0");
+        Buffer broken = new Buffer("test1".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public byte[] buf() {
+                throw new IllegalStateException("copy failed");
+            }
+        };
+        assertThatThrownBy(() -> queue.push(broken)).isInstanceOf(IllegalStateException.class);
+        push(queue, "test2");
+        assertThat(queue.count()).isEqualTo(2);
+
+        assertThat(pop(queue)).isEqualTo("test0");
+        assertThat(pop(queue)).isEqualTo("test2");
+        assertThat(pop(queue)).isNull();
+        queue.close();
+    }
+
+    @Test
+    public void testPushBatchFlushesOnce() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+
+        BufferList batch = new BufferList();
+        for (int i = 0; i < 10; i++)
+            batch.add().write().write(("test" + i).getBytes(StandardCharsets.UTF_8));
+
+        long flushes = queue.flushCount();
+        queue.pushBatch(batch);
+        assertThat(queue.flushCount() - flushes).isEqualTo(1);
+        assertStateFile(temp.getRoot(), 0, 0, 0, 90, 10, 90, 10, 0, 0);
+
+        for (int i = 0; i < 10; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+        assertThat(pop(queue)).isNull();
+    }
+
+    @Test
+    public void testPushBatchSpanningMultipleFiles() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512);
+
+        BufferList batch = new BufferList();
+        for (int i = 0; i < 5; i++)
+            batch.add().write().write(Strings.repeat("" + i, 512).getBytes(StandardCharsets.UTF_8));
+        queue.pushBatch(batch);
+
+        assertThat(temp.getRoot().list()).containsOnly(
+                "data00", "data01", "data02", "data03", "data04", "state"
+        );
+        assertBytesAndCount(queue, 5 * 516, 5);
+        for (int i = 0; i < 5; i++)
+            assertThat(pop(queue)).isEqualTo(Strings.repeat("" + i, 512));
+    }
+
+    @Test
+    public void testDrainToRespectsCountAndBytes() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121);
+
+        for (int i = 0; i < 20; i++)
+            push(queue, Strings.repeat("a", 96) + String.format((Locale) null, "%02d", i));
+
+        BufferList batch = new BufferList();
+        long flushes = queue.flushCount();
+        assertThat(queue.drainTo(batch, 5, Long.MAX_VALUE)).isEqualTo(5);
+        assertThat(queue.flushCount() - flushes).isEqualTo(1);
+        assertThat(queue.count()).isEqualTo(15);
+
+        assertThat(queue.drainTo(batch, 100, 250)).isEqualTo(3);
+        assertThat(batch.size()).isEqualTo(8);
+        for (int i = 0; i < 8; i++)
+            assertThat(new String(batch.get(i).toArray(), StandardCharsets.UTF_8)).endsWith(String.format((Locale) null, "%02d", i));
+
+        batch.clear();
+        assertThat(queue.drainTo(batch, 100, Long.MAX_VALUE)).isEqualTo(12);
+        assertThat(new String(batch.get(11).toArray(), StandardCharsets.UTF_8)).endsWith("19");
+        assertThat(queue.drainTo(batch, 100, Long.MAX_VALUE)).isEqualTo(0);
+        assertThat(batch.size()).isEqualTo(12);
+        assertThat(queue.count()).isEqualTo(0);
+
+        queue.reopen();
+        assertThat(queue.count()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDrainToAlwaysReturnsARecordLargerThanMaxBytes() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+        push(queue, Strings.repeat("a", 100));
+        push(queue, "b");
+
+        BufferList batch = new BufferList();
+        assertThat(queue.drainTo(batch, 10, 1)).isEqualTo(1);
+        assertThat(batch.get(0).count()).isEqualTo(100);
+        assertThat(pop(queue)).isEqualTo("b");
+    }
+
+    @Test
+    public void testExplicitSegmentSize() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 10000,
+                new DiskRawQueueOptions().setSegmentSize(1000));
+        assertThat(queue.dataFileLimit()).isEqualTo(1000);
+
+        String s = Strings.repeat("a", 496);
+        for (int i = 0; i < 30; i++)
+            push(queue, s);
+
+        assertThat(queue.files()).isEqualTo(9);
+        assertThat(queue.count()).isEqualTo(18);
+        assertThat(temp.getRoot().list()).hasSize(10);
+        assertThat(new File(temp.getRoot(), "state").length()).isEqualTo(StateFile.HEADER_SIZE + 10 * 4);
+
+        queue.close();
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 10000,
+                new DiskRawQueueOptions().setSegmentSize(1000));
+        for (int i = 0; i < 18; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(pop(queue)).isNull();
+    }
+
+    @Test
+    public void testMigratesLegacyLayoutOnceDrained() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121);
+        String s = Strings.repeat("a", 508);
+        for (int i = 0; i < 100; i++)
+            push(queue, s);
+        queue.close();
+
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setSegmentSize(8192);
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121, options);
+        assertThat(queue.count()).isEqualTo(100);
+        for (int i = 0; i < 100; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        push(queue, "abc");
+        queue.close();
+        assertThat(new File(temp.getRoot(), "state").length()).isEqualTo(StateFile.EXPECTED_SIZE);
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121, options);
+        assertThat(pop(queue)).isEqualTo("abc");
+        queue.close();
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121, options);
+        assertThat(queue.count()).isEqualTo(0);
+        assertThat(temp.getRoot().list()).containsOnly("state");
+        push(queue, "def");
+        queue.close();
+        assertThat(new File(temp.getRoot(), "state").length()).isEqualTo(StateFile.HEADER_SIZE + 8 * 4);
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121, options);
+        assertThat(pop(queue)).isEqualTo("def");
+    }
+
+    @Test
+    public void testPreallocateStream() throws Exception {
+        assertPreallocate(StorageMode.STREAM);
+    }
+
+    @Test
+    public void testPreallocateMapped() throws Exception {
+        assertPreallocate(StorageMode.MAPPED);
+    }
+
+    @Test
+    public void testPreallocateDirect() throws Exception {
+        Assume.assumeTrue(DirectIo.isSupported());
+        assertPreallocate(StorageMode.DIRECT);
+    }
+
+    private void assertPreallocate(StorageMode mode) throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions()
+                .setStorageMode(mode).setPreallocate(true).setFlushOnPush(false).setFlushOnPop(false);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 4096 * 121, options);
+        File data00 = new File(temp.getRoot(), "data00");
+
+        push(queue, "test0");
+        assertThat(data00.length()).isEqualTo(4096);
+        queue.flush();
+        push(queue, "test1");
+        assertThat(pop(queue)).isEqualTo("test0");
+        push(queue, "test2");
+        assertThat(pop(queue)).isEqualTo("test1");
+        assertThat(pop(queue)).isEqualTo("test2");
+
+        String s = Strings.repeat("a", 1020);
+        for (int i = 0; i < 5; i++)
+            push(queue, s);
+        //the full segment keeps its preallocated length, the state knows where its records end
+        assertThat(data00.length()).isGreaterThanOrEqualTo(3 * 9 + 4 * 1024);
+        assertThat(new File(temp.getRoot(), "data01").length()).isEqualTo(4096);
+        assertBytesAndCount(queue, 3 * 9 + 5 * 1024, 5);
+
+        queue.close();
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 4096 * 121, options);
+        assertBytesAndCount(queue, 3 * 9 + 5 * 1024, 5);
+        push(queue, "test3");
+        for (int i = 0; i < 5; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(pop(queue)).isEqualTo("test3");
+        assertBytesAndCount(queue, 1024 + 9, 0);
+    }
+
+    @Test
+    public void testDirectStorageMode() throws Exception {
+        Assume.assumeTrue(DirectIo.isSupported());
+        DiskRawQueueOptions options = new DiskRawQueueOptions()
+                .setStorageMode(StorageMode.DIRECT).setChecksum(true).setFlushOnPush(false);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 100000000, options);
+        File data00 = new File(temp.getRoot(), "data00");
+
+        push(queue, "test0");
+        push(queue, "test1");
+        queue.flush();
+        assertThat(data00.length()).isEqualTo(DirectIo.BLOCK_SIZE);
+        assertThat(pop(queue)).isEqualTo("test0");
+        push(queue, "test2");
+        assertThat(pop(queue)).isEqualTo("test1");
+        assertThat(pop(queue)).isEqualTo("test2");
+
+        List<String> expected = new ArrayList<>();
+        long size = 3 * 17;
+        for (int i = 0; i < 10; i++) {
+            String s = Strings.repeat("" + (char) ('a' + i), i % 4 == 0 ? 1500 * 1024 + i : 3000 + i);
+            expected.add(s);
+            size += 12 + s.length();
+            push(queue, s);
+        }
+        queue.close();
+        long total = 0;
+        for (File file : temp.getRoot().listFiles((dir, name) -> name.startsWith("data")))
+            total += file.length();
+        assertThat(total).isEqualTo(size);
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 100000000, options);
+        push(queue, "test3");
+        expected.add("test3");
+        for (String s : expected)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(pop(queue)).isNull();
+        queue.close();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        for (StorageMode mode : new StorageMode[]{StorageMode.STREAM, StorageMode.MAPPED}) {
+            Path dir = temp.newFolder().toPath();
+            DiskRawQueueOptions options = new DiskRawQueueOptions()
+                    .setCompression(true).setChecksum(true).setStorageMode(mode).setFlushOnPush(false);
+            DiskRawQueue queue = new DiskRawQueue(dir, 100000000, options);
+
+            List<String> expected = new ArrayList<>();
+            long raw = 0;
+            for (int i = 0; i < 2000; i++) {
+                String s = "{\"timestamp\":" + (1562943818361L + i) + ",\"mnemonic\":\"STKNUM\",\"value\":" + (i % 7) + ".0}";
+                expected.add(s);
+                raw += s.length() + DataFileFormat.CHECKSUMMED_OVERHEAD;
+                push(queue, s);
+            }
+            String large = Strings.repeat("x", CompressedDataFileWriter.BLOCK_SIZE);
+            expected.add(large);
+            push(queue, large);
+            queue.flush();
+            assertThat(queue.count()).isEqualTo(2001);
+            assertThat(queue.bytes()).isLessThan(raw / 3 + large.length() + DataFileFormat.CHECKSUMMED_OVERHEAD);
+
+            for (int i = 0; i < 1000; i++)
+                assertThat(pop(queue)).isEqualTo(expected.get(i));
+            queue.close();
+
+            queue = new DiskRawQueue(dir, 100000000, options);
+            assertThat(queue.count()).isEqualTo(1001);
+            assertThat(peek(queue)).isEqualTo(expected.get(1000));
+            for (int i = 1000; i < expected.size(); i++)
+                assertThat(pop(queue)).isEqualTo(expected.get(i));
+            assertThat(pop(queue)).isNull();
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testCompressionKeepsPendingBlockWithinMaxSize() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setCompression(true).setFlushOnPush(false);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 256 * 1024, options);
+
+        Random random = new Random(42);
+        byte[] bytes = new byte[150];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(bytes);
+            push(queue, Base64.getEncoder().encodeToString(bytes));
+            if (i % 37 != 0) continue;
+            queue.flush();
+            assertThat(queue.bytes()).isLessThanOrEqualTo(256 * 1024);
+        }
+        queue.close();
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions()
+                .setBackgroundCompaction(true).setSegmentSize(64 * 1024).setFlushOnPush(false);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 1024, options);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            expected.add("{\"timestamp\":" + (1562943818361L + i) + ",\"mnemonic\":\"STKNUM\",\"value\":" + (i % 7) + ".0}");
+
+        for (int i = 0; i < 5000; i++)
+            push(queue, expected.get(i));
+        long written = queue.bytes();
+        assertThat(queue.files()).isGreaterThan(3);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.bytes() > written / 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertThat(queue.bytes()).isLessThan(written / 2);
+        assertThat(new File(temp.getRoot(), "data00").length()).isGreaterThan(64 * 1024);
+        assertThat(new File(temp.getRoot(), "data01").length()).isLessThan(32 * 1024);
+
+        //uncompacted, the second half would not fit without dropping the oldest records
+        for (int i = 5000; i < 10000; i++)
+            push(queue, expected.get(i));
+        assertThat(queue.count()).isEqualTo(10000);
+
+        for (int i = 0; i < 2000; i++)
+            assertThat(pop(queue)).isEqualTo(expected.get(i));
+        queue.close();
+
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 1024, options);
+        assertThat(queue.count()).isEqualTo(8000);
+        for (int i = 2000; i < expected.size(); i++)
+            assertThat(pop(queue)).isEqualTo(expected.get(i));
+        assertThat(pop(queue)).isNull();
+        assertThat(temp.getRoot().list()).doesNotContain("compacting");
+        queue.close();
+    }
+
+    @Test
+    public void testHotTailCache() throws Exception {
+        for (StorageMode mode : new StorageMode[]{StorageMode.STREAM, StorageMode.MAPPED}) {
+            Path dir = temp.newFolder().toPath();
+            DiskRawQueueOptions options = new DiskRawQueueOptions().setStorageMode(mode)
+                    .setHotTailBytes(1000).setSegmentSize(512);
+            DiskRawQueue queue = new DiskRawQueue(dir, 1000000, options);
+
+            for (int i = 0; i < 200; i++)
+                push(queue, String.format((Locale) null, "test%03d", i));
+            assertThat(queue.files()).isGreaterThan(3);
+
+            //the oldest records no longer fit in memory and come from disk
+            for (int i = 0; i < 60; i++)
+                assertThat(pop(queue)).isEqualTo(String.format((Locale) null, "test%03d", i));
+
+            //only records served from memory can still come back intact
+            for (File file : dir.toFile().listFiles()) {
+                if (!file.getName().startsWith("data")) continue;
+                try (RandomAccessFile random = new RandomAccessFile(file, "rw")) {
+                    random.write(new byte[(int) random.length()]);
+                }
+            }
+            assertThat(peek(queue)).isEqualTo("test060");
+            for (int i = 60; i < 200; i++)
+                assertThat(pop(queue)).isEqualTo(String.format((Locale) null, "test%03d", i));
+            assertThat(pop(queue)).isNull();
+            queue.close();
+
+            queue = new DiskRawQueue(dir, 1000000, options);
+            assertThat(queue.count()).isEqualTo(0);
+            push(queue, "after");
+            queue.reopen();
+            assertThat(pop(queue)).isEqualTo("after");
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testHotTailServesUnflushedRecordsWithoutFlushing() throws Exception {
+        Path dir = temp.getRoot().toPath();
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setHotTailBytes(1000)
+                .setFlushOnPush(false).setFlushOnPop(false);
+        DiskRawQueue queue = new DiskRawQueue(dir, 1000000, options);
+
+        for (int i = 0; i < 10; i++)
+            push(queue, "test" + i);
+        long flushes = queue.flushCount();
+        assertThat(peek(queue)).isEqualTo("test0");
+        for (int i = 0; i < 10; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+        assertThat(pop(queue)).isNull();
+        assertThat(queue.flushCount()).isEqualTo(flushes);
+        queue.close();
+
+        queue = new DiskRawQueue(dir, 1000000, options);
+        assertThat(queue.count()).isEqualTo(0);
+        queue.close();
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        for (boolean compression : new boolean[]{false, true}) {
+            Path dir = temp.newFolder().toPath();
+            DiskRawQueueOptions options = new DiskRawQueueOptions().setReadAhead(16).setReadAheadBytes(1024)
+                    .setCompression(compression).setSegmentSize(4096).setFlushOnPush(false);
+            DiskRawQueue queue = new DiskRawQueue(dir, 10 * 1024 * 1024, options);
+
+            for (int i = 0; i < 5000; i++) {
+                push(queue, "test" + i);
+                if (i % 100 == 99)
+                    queue.flush();
+            }
+            assertThat(queue.files()).isGreaterThan(2);
+
+            for (int i = 0; i < 2500; i++) {
+                assertThat(peek(queue)).isEqualTo("test" + i);
+                assertThat(pop(queue)).isEqualTo("test" + i);
+            }
+            queue.close();
+
+            queue = new DiskRawQueue(dir, 10 * 1024 * 1024, options);
+            assertThat(queue.count()).isEqualTo(2500);
+            for (int i = 2500; i < 5000; i++)
+                assertThat(pop(queue)).isEqualTo("test" + i);
+            assertThat(pop(queue)).isNull();
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testReadAheadSkipsCorruptedRecord() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setReadAhead(4).setChecksum(true).setSegmentSize(512);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1024 * 1024, options);
+
+        for (int i = 0; i < 40; i++)
+            push(queue, "test" + (char) ('a' + i));
+        try (RandomAccessFile file = new RandomAccessFile(new File(temp.getRoot(), "data00"), "rw")) {
+            file.seek(17 * 5 + 14);
+            file.write('X');
+        }
+
+        for (int i = 0; i < 40; i++) {
+            if (i == 5) continue;
+            assertThat(pop(queue)).isEqualTo("test" + (char) ('a' + i));
+        }
+        assertThat(pop(queue)).isNull();
+        assertThat(queue.count()).isEqualTo(0);
+        queue.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testRecycledSegments() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setPreallocate(true).setRecycledSegments(2);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121, options);
+
+        String s = Strings.repeat("a", 508);
+        for (int i = 0; i < 4; i++)
+            push(queue, s);
+        //preallocated segments are opened ahead, before any spare is there to be taken
+        File data04 = new File(temp.getRoot(), "data04");
+        while (data04.length() != 512)
+            Thread.sleep(10);
+        assertThat(temp.getRoot().list()).containsOnly("data00", "data01", "data02", "data03", "data04", "state");
+
+        for (int i = 0; i < 3; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(temp.getRoot().list()).containsOnly("data03", "data04", "spare00", "spare01", "state");
+
+        push(queue, "abc");
+        assertThat(temp.getRoot().list()).containsOnly("data03", "data04", "spare00", "spare01", "state");
+        assertThat(data04.length()).isEqualTo(512);
+
+        queue.close();
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121, options);
+        assertThat(pop(queue)).isEqualTo(s);
+        push(queue, "def");
+        assertThat(pop(queue)).isEqualTo("abc");
+        assertThat(pop(queue)).isEqualTo("def");
+        assertThat(temp.getRoot().list()).containsOnly("data04", "spare00", "spare01", "state");
+
+        queue.close();
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121,
+                new DiskRawQueueOptions().setRecycledSegments(1));
+        assertThat(queue.count()).isEqualTo(0);
+        assertThat(temp.getRoot().list()).hasSize(3).contains("data04", "state");
+    }
+
+    @Test
+    public void testBackgroundReclaim() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setBackgroundReclaim(true);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121, options);
+
+        String s = Strings.repeat("a", 508);
+        for (int i = 0; i < 4; i++)
+            push(queue, s);
+        for (int i = 0; i < 3; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(queue.files()).isEqualTo(1);
+
+        queue.close();
+        assertThat(temp.getRoot().list()).containsOnly("data03", "state");
+    }
+
+    @Test
+    public void testBackgroundReclaimWrappingAroundFiles() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions()
+                .setSegmentSize(512).setBackgroundReclaim(true).setRecycledSegments(1);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 2048, options);
+
+        for (int i = 0; i < 200; i++) {
+            String s = Strings.repeat("" + (i % 10), 508);
+            push(queue, s);
+            push(queue, s);
+            assertThat(pop(queue)).isEqualTo(s);
+            assertThat(pop(queue)).isEqualTo(s);
+        }
+        assertThat(queue.count()).isEqualTo(0);
+
+        queue.close();
+        assertThat(temp.getRoot().list()).containsOnly("spare00", "state");
+    }
+
+    @Test(timeout = 10000)
+    public void testPreopenNextSegment() throws Exception {
+        DiskRawQueueOptions options = new DiskRawQueueOptions().setPreopenNextSegment(true).setPreallocate(true);
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1024 * 121, options);
+        File data01 = new File(temp.getRoot(), "data01");
+
+        String s = Strings.repeat("a", 296);
+        push(queue, s);
+        assertThat(data01).doesNotExist();
+        push(queue, s);
+        while (data01.length() != 1024)
+            Thread.sleep(10);
+        assertThat(queue.files()).isEqualTo(1);
+
+        for (int i = 0; i < 10; i++)
+            push(queue, s);
+        assertThat(queue.files()).isEqualTo(3);
+        assertThat(new File(temp.getRoot(), "data00").length()).isEqualTo(4 * 300);
+
+        queue.close();
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 1024 * 121, options);
+        for (int i = 0; i < 12; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(pop(queue)).isNull();
+        queue.close();
+        assertThat(temp.getRoot().list()).containsOnly("data03", "state");
+    }
+
+    @Test
+    public void testRecordsLargerThanIoBuffer() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 100000000);
+
+        String big = Strings.repeat("abcdefgh", DirectBufferPool.BUFFER_SIZE / 3);
+        push(queue, "small");
+        push(queue, big);
+        push(queue, big + "x");
+
+        assertThat(pop(queue)).isEqualTo("small");
+        assertThat(peek(queue)).isEqualTo(big);
+        assertThat(pop(queue)).isEqualTo(big);
+        assertThat(peek(queue)).isEqualTo(big + "x");
+        assertThat(pop(queue)).isEqualTo(big + "x");
+        assertThat(pop(queue)).isNull();
+    }
+
+    @Test
+    public void testMixedRecordSizesAcrossIoBuffer() throws Exception {
+        for (boolean checksum : new boolean[]{false, true}) {
+            Path dir = temp.newFolder().toPath();
+            DiskRawQueue queue = new DiskRawQueue(dir, 100000000,
+                    new DiskRawQueueOptions().setChecksum(checksum).setFlushOnPush(false));
+
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String s = Strings.repeat("" + (char) ('a' + i), i % 3 == 0 ? 700 * 1024 + i : 100 * 1024 + i);
+                expected.add(s);
+                push(queue, s);
+            }
+            queue.close();
+
+            queue = new DiskRawQueue(dir, 100000000,
+                    new DiskRawQueueOptions().setStorageMode(StorageMode.MAPPED));
+            for (String s : expected)
+                assertThat(pop(queue)).isEqualTo(s);
+            assertThat(pop(queue)).isNull();
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testReopenReusesIoBuffers() throws Exception {
+        DiskRawQueue queue = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+        push(queue, "test");
+        assertThat(pop(queue)).isEqualTo("test");
+        push(queue, "test");
+        queue.close();
+
+        int idle = DirectBufferPool.idle();
+        queue = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+        assertThat(pop(queue)).isEqualTo("test");
+        push(queue, "test");
+        assertThat(DirectBufferPool.idle()).isEqualTo(Math.max(0, idle - 2));
+        queue.close();
+        assertThat(DirectBufferPool.idle()).isEqualTo(Math.min(idle, DirectBufferPool.MAX_IDLE));
+    }
+
     private void assertBytesAndCount(DiskRawQueue queue, int bytes, int count) {
         assertThat(queue.bytes()).isEqualTo(bytes);
         assertThat(queue.count()).isEqualTo(count);
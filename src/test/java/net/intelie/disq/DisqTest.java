@@ -13,6 +13,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -188,6 +189,58 @@ public class DisqTest {
         assertThat(temp.getRoot().list()).containsOnly("state");
     }
 
+    @Test
+    public void testMappedStorageMode() throws Exception {
+        @SuppressWarnings("unchecked")
+        Processor<String> processor = mock(Processor.class);
+
+        try (Disq<String> disq = Disq.builder(processor)
+                .setStorageMode(StorageMode.MAPPED)
+                .setSerializer(new StringSerializer())
+                .setDirectory(temp.getRoot().toPath())
+                .build(true)) {
+            disq.submit("test1");
+            disq.submit("test2");
+            assertThat(disq.count()).isEqualTo(2);
+
+            disq.resume();
+            while (disq.count() > 0)
+                Thread.sleep(10);
+        }
+
+        InOrder ordered = inOrder(processor);
+        ordered.verify(processor).process("test1");
+        ordered.verify(processor).process("test2");
+        ordered.verifyNoMoreInteractions();
+    }
+
+    @Test
+    public void testSubmitAll() throws Exception {
+        @SuppressWarnings("unchecked")
+        Processor<String> processor = mock(Processor.class);
+
+        try (Disq<String> disq = Disq.builder(processor)
+                .setSerializer(new StringSerializer())
+                .setDirectory(temp.getRoot().toPath())
+                .build(true)) {
+            assertThat(disq.submitAll(Arrays.asList("test1", "test2", "test3"))).isTrue();
+            assertThat(disq.count()).isEqualTo(3);
+
+            disq.resume();
+            while (disq.count() > 0)
+                Thread.sleep(10);
+
+            disq.close();
+            assertThat(disq.submitAll(Arrays.asList("test4", "test5"))).isFalse();
+        }
+
+        InOrder ordered = inOrder(processor);
+        ordered.verify(processor).process("test1");
+        ordered.verify(processor).process("test2");
+        ordered.verify(processor).process("test3");
+        ordered.verifyNoMoreInteractions();
+    }
+
     @Test
     public void testSpecificPathCompressedueueReopening() throws Exception {
         String s = Strings.repeat("a", (int) StateFile.MIN_QUEUE_SIZE / 5 - 5);
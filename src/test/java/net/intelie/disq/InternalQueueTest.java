@@ -10,7 +10,11 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -41,23 +45,28 @@ public class InternalQueueTest {
         }
 
         ThreadResources.allocatedBytes(Thread.currentThread());
-        long start = ThreadResources.allocatedBytes(Thread.currentThread());
-        for (int i = 0; i < 10000; i++) {
-            queue.push(buffer);
-            queue.flush();
-        }
-        for (int i = 0; i < 10000; i++)
-            queue.peek(buffer2);
-        for (int i = 0; i < 10000; i++) {
-            queue.blockingPop(buffer2);
-            queue.flush();
-        }
-        for (int i = 0; i < 10000; i++) {
-            queue.push(buffer);
-            queue.blockingPop(buffer2);
+        //a method the JIT deoptimizes and compiles again allocates a few bytes once, at a random point;
+        //an allocation per operation would show in every round
+        long end = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = ThreadResources.allocatedBytes(Thread.currentThread());
+            for (int i = 0; i < 10000; i++) {
+                queue.push(buffer);
+                queue.flush();
+            }
+            for (int i = 0; i < 10000; i++)
+                queue.peek(buffer2);
+            for (int i = 0; i < 10000; i++) {
+                queue.blockingPop(buffer2);
+                queue.flush();
+            }
+            for (int i = 0; i < 10000; i++) {
+                queue.push(buffer);
+                queue.blockingPop(buffer2);
+            }
+            end = ThreadResources.allocatedBytes(Thread.currentThread()) - start;
+            if (end == 0) break;
         }
-
-        long end = ThreadResources.allocatedBytes(Thread.currentThread()) - start;
         assertThat(end).isZero();
         assertThat(disk.files()).isEqualTo(1);
         assertThat(queue.count()).isEqualTo(0);
@@ -216,6 +225,314 @@ public class InternalQueueTest {
         assertThat(new File(temp.getRoot(), "state").length()).isEqualTo(512);
     }
 
+    @Test
+    public void testWriteBehind() throws Throwable {
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000000);
+        InternalQueue queue = new InternalQueue(bq, 0, 16);
+
+        WriterThread writer1 = new WriterThread(queue, "a");
+        WriterThread writer2 = new WriterThread(queue, "b");
+        writer1.start();
+        writer2.start();
+        writer1.waitFinish();
+        writer2.waitFinish();
+        queue.flush();
+        assertThat(bq.count()).isEqualTo(400);
+
+        Adapter adapter = new Adapter(queue);
+        int a = 0, b = 0;
+        for (int i = 0; i < 400; i++) {
+            String popped = adapter.blockingPop();
+            if (popped.startsWith("a"))
+                assertThat(popped).isEqualTo("a" + a++);
+            else
+                assertThat(popped).isEqualTo("b" + b++);
+        }
+        assertThat(adapter.pop()).isNull();
+        queue.close();
+    }
+
+    @Test
+    public void testWriteBehindAcknowledgesAndDrainsOnClose() throws Exception {
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000000);
+        InternalQueue queue = new InternalQueue(bq, 0, 4);
+
+        queue.pushAsync(new Buffer("first".getBytes(StandardCharsets.UTF_8))).get(10, TimeUnit.SECONDS);
+        assertThat(bq.count()).isEqualTo(1);
+
+        for (int i = 0; i < 100; i++)
+            queue.push(new Buffer(("test" + i).getBytes(StandardCharsets.UTF_8)));
+        queue.close();
+
+        DiskRawQueue reopened = new DiskRawQueue(temp.getRoot().toPath(), 1000000);
+        assertThat(reopened.count()).isEqualTo(101);
+        reopened.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testWriteBehindKeepsEveryPushThatReturnedWhileClosing() throws Exception {
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 10000000);
+        InternalQueue queue = new InternalQueue(bq, 0, 4);
+
+        AtomicInteger pushed = new AtomicInteger();
+        Thread[] producers = new Thread[4];
+        for (int t = 0; t < producers.length; t++) {
+            producers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        queue.push(new Buffer(("test" + i).getBytes(StandardCharsets.UTF_8)));
+                        pushed.incrementAndGet();
+                    }
+                } catch (IllegalStateException ignored) {
+                    //the disk queue is already closed
+                }
+            });
+            producers[t].start();
+        }
+        Thread.sleep(5);
+        queue.close();
+        for (Thread producer : producers)
+            producer.join();
+
+        DiskRawQueue reopened = new DiskRawQueue(temp.getRoot().toPath(), 10000000);
+        assertThat(reopened.count()).isEqualTo(pushed.get());
+        reopened.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testWriteBehindWriterLeavesWhenIdle() throws Exception {
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000000);
+        InternalQueue queue = new InternalQueue(bq, 0, 4);
+
+        for (int i = 0; i < 3; i++) {
+            queue.pushAsync(new Buffer(("test" + i).getBytes(StandardCharsets.UTF_8))).get(10, TimeUnit.SECONDS);
+            while (writeBehindRunning())
+                Thread.sleep(1);
+        }
+        assertThat(bq.count()).isEqualTo(3);
+        queue.close();
+    }
+
+    private static boolean writeBehindRunning() {
+        for (StackTraceElement[] stack : Thread.getAllStackTraces().values())
+            for (StackTraceElement element : stack)
+                if (element.getClassName().equals(InternalQueue.class.getName()) && element.getMethodName().equals("writeBehind"))
+                    return true;
+        return false;
+    }
+
+    @Test(timeout = 20000)
+    public void testWriteBehindCountsBytesStillInTheRing() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000000) {
+            @Override
+            public void pushBatch(BufferList batch) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.pushBatch(batch);
+            }
+        };
+        InternalQueue queue = new InternalQueue(bq, 0, 16);
+
+        queue.push(new Buffer("first".getBytes(StandardCharsets.UTF_8)));
+        while (queue.bytes() > 0)
+            Thread.sleep(1);
+        //the writer now holds the first record, the rest wait in the ring
+        for (int i = 0; i < 3; i++)
+            queue.push(new Buffer("abcd".getBytes(StandardCharsets.UTF_8)));
+        assertThat(queue.bytes()).isEqualTo(12);
+        release.countDown();
+        queue.flush();
+        assertThat(queue.count()).isEqualTo(4);
+        queue.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testFallbackMovesBackToDiskWhenItRecovers() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000000) {
+            @Override
+            public void push(Buffer buffer) throws IOException {
+                if (failing.get()) throw new IOException("disk is failing");
+                super.push(buffer);
+            }
+
+            @Override
+            public void pushBatch(BufferList batch) throws IOException {
+                if (failing.get()) throw new IOException("disk is failing");
+                super.pushBatch(batch);
+            }
+        };
+        InternalQueue queue = new InternalQueue(bq, 1000);
+        queue.setRecoveryMs(10);
+        Adapter adapter = new Adapter(queue);
+
+        for (int i = 0; i < 10; i++)
+            adapter.push("test" + i);
+        assertThat(queue.fallbackQueue().count()).isEqualTo(10);
+        assertThat(queue.recovering()).isTrue();
+        Thread.sleep(50);
+        assertThat(queue.fallbackQueue().count()).isEqualTo(10);
+
+        failing.set(false);
+        while (queue.recovering())
+            Thread.sleep(10);
+        assertThat(queue.fallbackQueue().count()).isEqualTo(0);
+        assertThat(bq.count()).isEqualTo(10);
+
+        adapter.push("test10");
+        queue.close();
+
+        DiskRawQueue reopened = new DiskRawQueue(temp.getRoot().toPath(), 1000000);
+        InternalQueue queue2 = new InternalQueue(reopened);
+        Adapter adapter2 = new Adapter(queue2);
+        for (int i = 0; i < 11; i++)
+            assertThat(adapter2.pop()).isEqualTo("test" + i);
+        assertThat(adapter2.pop()).isNull();
+        queue2.close();
+    }
+
+    @Test
+    public void testRecordsPushedWhileRecoveringStayBehindTheFallback() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000000) {
+            @Override
+            public void push(Buffer buffer) throws IOException {
+                if (failing.get()) throw new IOException("disk is failing");
+                super.push(buffer);
+            }
+        };
+        InternalQueue queue = new InternalQueue(bq, 1000);
+        queue.setRecoveryMs(TimeUnit.HOURS.toMillis(1));
+        Adapter adapter = new Adapter(queue);
+
+        adapter.push("test0");
+        failing.set(false);
+        adapter.push("test1");
+        assertThat(queue.fallbackQueue().count()).isEqualTo(2);
+        assertThat(bq.count()).isEqualTo(0);
+
+        //closing moves them to disk in order
+        queue.close();
+        assertThat(queue.recovering()).isFalse();
+        DiskRawQueue reopened = new DiskRawQueue(temp.getRoot().toPath(), 1000000);
+        Buffer buffer = new Buffer();
+        assertThat(reopened.count()).isEqualTo(2);
+        assertThat(reopened.pop(buffer)).isTrue();
+        assertThat(new String(buffer.toArray(), StandardCharsets.UTF_8)).isEqualTo("\"test0\"");
+        reopened.close();
+    }
+
+    @Test
+    public void testEmptyFallbackDoesNotHoldBackAHealthyDisk() throws Exception {
+        //fails the first push and its lenient retry
+        AtomicInteger failures = new AtomicInteger(2);
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000000) {
+            @Override
+            public void push(Buffer buffer) throws IOException {
+                if (failures.getAndDecrement() > 0) throw new IOException("disk is failing");
+                super.push(buffer);
+            }
+        };
+        InternalQueue queue = new InternalQueue(bq, 0);
+        queue.setRecoveryMs(TimeUnit.HOURS.toMillis(1));
+        Adapter adapter = new Adapter(queue);
+
+        //the first record is lost, there is no room for it in the fallback
+        adapter.push("lost");
+        assertThat(queue.recovering()).isTrue();
+        for (int i = 0; i < 10; i++)
+            adapter.push("test" + i);
+        assertThat(queue.recovering()).isFalse();
+        assertThat(bq.count()).isEqualTo(10);
+        queue.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testFailsOverToSpillDirectories() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        DiskRawQueue bq = new DiskRawQueue(temp.newFolder("primary").toPath(), 1000000) {
+            @Override
+            public void push(Buffer buffer) throws IOException {
+                if (failing.get()) throw new IOException("disk is failing");
+                super.push(buffer);
+            }
+        };
+        DiskRawQueue spill = new DiskRawQueue(temp.newFolder("spill").toPath(), 1000000);
+        InternalQueue queue = new InternalQueue(bq, 1000, 0, Collections.singletonList(spill));
+        queue.setRecoveryMs(TimeUnit.HOURS.toMillis(1));
+        Adapter adapter = new Adapter(queue);
+
+        for (int i = 0; i < 10; i++)
+            adapter.push("test" + i);
+        assertThat(spill.count()).isEqualTo(10);
+        assertThat(queue.fallbackQueue().count()).isEqualTo(0);
+        assertThat(queue.count()).isEqualTo(10);
+        assertThat(queue.spillQueues()).containsExactly(spill);
+
+        assertThat(adapter.peek()).isEqualTo("test0");
+        assertThat(adapter.pop()).isEqualTo("test0");
+
+        //closing moves what is left back to the primary queue
+        failing.set(false);
+        queue.close();
+        assertThat(spill.count()).isEqualTo(0);
+
+        DiskRawQueue reopened = new DiskRawQueue(temp.getRoot().toPath().resolve("primary"), 1000000);
+        InternalQueue queue2 = new InternalQueue(reopened);
+        Adapter adapter2 = new Adapter(queue2);
+        for (int i = 1; i < 10; i++)
+            assertThat(adapter2.pop()).isEqualTo("test" + i);
+        assertThat(adapter2.pop()).isNull();
+        queue2.close();
+    }
+
+    @Test
+    public void testBuilderCreatesSpillQueues() throws Exception {
+        InternalQueue queue = Disq.builder()
+                .setDirectory(temp.newFolder("primary").toPath())
+                .setFallbackDirectories(temp.newFolder("spill1").toPath(), temp.newFolder("spill2").toPath())
+                .setFallbackDirectoryMaxSize(12345678)
+                .buildInternalQueue();
+        assertThat(queue.spillQueues()).hasSize(2);
+        assertThat(((DiskRawQueue) queue.spillQueues().get(1)).path()).isEqualTo(temp.getRoot().toPath().resolve("spill2"));
+        assertThat(queue.spillQueues().get(0).remainingBytes()).isEqualTo(12345678);
+        queue.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testMovesManySpilledRecordsBackInOrder() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        DiskRawQueue bq = new DiskRawQueue(temp.newFolder("primary").toPath(), 10000000) {
+            @Override
+            public void push(Buffer buffer) throws IOException {
+                if (failing.get()) throw new IOException("disk is failing");
+                super.push(buffer);
+            }
+        };
+        DiskRawQueue spill = new DiskRawQueue(temp.newFolder("spill").toPath(), 10000000);
+        InternalQueue queue = new InternalQueue(bq, 0, 0, Collections.singletonList(spill));
+        queue.setRecoveryMs(10);
+        Adapter adapter = new Adapter(queue);
+
+        for (int i = 0; i < 1000; i++)
+            adapter.push("test" + i);
+        assertThat(spill.count()).isEqualTo(1000);
+
+        failing.set(false);
+        while (queue.recovering())
+            Thread.sleep(10);
+        assertThat(spill.count()).isEqualTo(0);
+        assertThat(bq.count()).isEqualTo(1000);
+        for (int i = 0; i < 1000; i++)
+            assertThat(adapter.pop()).isEqualTo("test" + i);
+        assertThat(adapter.pop()).isNull();
+        queue.close();
+    }
+
 
     private static abstract class ThrowableThread extends Thread {
         private Throwable t;
@@ -0,0 +1,176 @@
+package net.intelie.disq;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LanedRawQueueTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testEachThreadPushesToItsOwnLane() throws Exception {
+        LanedRawQueue queue = new LanedRawQueue(temp.getRoot().toPath(), 1000000, 2, new DiskRawQueueOptions());
+
+        push(queue, "a1");
+        push(queue, "a2");
+        Thread other = new Thread(() -> {
+            try {
+                push(queue, "b1");
+                push(queue, "b2");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        other.start();
+        other.join();
+
+        assertThat(temp.getRoot().list()).containsOnly("lane00", "lane01");
+        assertThat(queue.lane(0).count()).isEqualTo(2);
+        assertThat(queue.lane(1).count()).isEqualTo(2);
+        assertThat(queue.count()).isEqualTo(4);
+
+        //lanes are read round-robin
+        assertThat(peek(queue)).isEqualTo("a1");
+        assertThat(pop(queue)).isEqualTo("a1");
+        assertThat(pop(queue)).isEqualTo("b1");
+        assertThat(pop(queue)).isEqualTo("a2");
+        assertThat(pop(queue)).isEqualTo("b2");
+        assertThat(pop(queue)).isNull();
+        assertThat(queue.count()).isEqualTo(0);
+        queue.close();
+    }
+
+    @Test
+    public void testDrainToMergesLanes() throws Exception {
+        LanedRawQueue queue = new LanedRawQueue(temp.getRoot().toPath(), 1000000, 3, new DiskRawQueueOptions());
+        push(queue, "a");
+        push(queue, "b");
+        queue.lane(1).push(new Buffer("c".getBytes(StandardCharsets.UTF_8)));
+        queue.lane(2).push(new Buffer("d".getBytes(StandardCharsets.UTF_8)));
+
+        BufferList batch = new BufferList();
+        assertThat(queue.drainTo(batch, 3, Long.MAX_VALUE)).isEqualTo(3);
+        assertThat(queue.drainTo(batch, 10, Long.MAX_VALUE)).isEqualTo(1);
+        assertThat(queue.drainTo(batch, 10, Long.MAX_VALUE)).isEqualTo(0);
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++)
+            values.add(new String(batch.get(i).toArray(), StandardCharsets.UTF_8));
+        assertThat(values).containsExactlyInAnyOrder("a", "b", "c", "d");
+        assertThat(values.indexOf("a")).isLessThan(values.indexOf("b"));
+        queue.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testKeepsPerProducerOrderAcrossReopen() throws Exception {
+        Path dir = temp.getRoot().toPath();
+        LanedRawQueue queue = new LanedRawQueue(dir, 10000000, 4, new DiskRawQueueOptions().setFlushOnPush(false));
+
+        int threads = 6, perThread = 1000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            int producer = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++)
+                        push(queue, producer + ":" + i);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : producers)
+            thread.join();
+        assertThat(error.get()).isNull();
+        queue.close();
+
+        LanedRawQueue reopened = new LanedRawQueue(dir, 10000000, 4, new DiskRawQueueOptions());
+        assertThat(reopened.count()).isEqualTo(threads * perThread);
+        int[] next = new int[threads];
+        for (int i = 0; i < threads * perThread; i++) {
+            String[] value = pop(reopened).split(":");
+            int producer = Integer.parseInt(value[0]);
+            assertThat(Integer.parseInt(value[1])).isEqualTo(next[producer]++);
+        }
+        assertThat(pop(reopened)).isNull();
+        reopened.close();
+    }
+
+    @Test
+    public void testBuilderCreatesLanes() throws Exception {
+        LanedRawQueue queue = Disq.builder().setDirectory(temp.getRoot().toPath()).setLanes(3).buildLanedRawQueue();
+        assertThat(queue.lanes()).isEqualTo(3);
+        queue.close();
+    }
+
+    @Test
+    public void testSingleLaneReadsLanesLeftBehind() throws Exception {
+        Path dir = temp.getRoot().toPath();
+        LanedRawQueue wide = new LanedRawQueue(dir, 1000000, 2, new DiskRawQueueOptions());
+        wide.lane(1).push(new Buffer("lane1".getBytes(StandardCharsets.UTF_8)));
+        wide.close();
+        assertThat(LanedRawQueue.hasLanes(dir)).isTrue();
+
+        LanedRawQueue single = new LanedRawQueue(dir, 1000000, 1, new DiskRawQueueOptions());
+        push(single, "root");
+        assertThat(pop(single)).isEqualTo("lane1");
+        assertThat(pop(single)).isEqualTo("root");
+        single.close();
+        assertThat(new File(temp.getRoot(), "state")).exists();
+    }
+
+    @Test
+    public void testReadsDataLeftByAnotherLayoutFirst() throws Exception {
+        Path dir = temp.getRoot().toPath();
+        DiskRawQueue plain = new DiskRawQueue(dir, 1000000);
+        push(plain, "root");
+        plain.close();
+        LanedRawQueue wide = new LanedRawQueue(dir, 1000000, 3, new DiskRawQueueOptions());
+        assertThat(pop(wide)).isEqualTo("root");
+        wide.lane(2).push(new Buffer("lane2".getBytes(StandardCharsets.UTF_8)));
+        wide.close();
+
+        LanedRawQueue narrow = new LanedRawQueue(dir, 1000000, 2, new DiskRawQueueOptions());
+        push(narrow, "new");
+        assertThat(narrow.count()).isEqualTo(2);
+        assertThat(peek(narrow)).isEqualTo("lane2");
+        assertThat(pop(narrow)).isEqualTo("lane2");
+        assertThat(pop(narrow)).isEqualTo("new");
+        assertThat(pop(narrow)).isNull();
+        narrow.close();
+    }
+
+    private void push(RawQueue queue, String s) throws IOException {
+        queue.push(new Buffer(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String pop(RawQueue queue) throws IOException {
+        Buffer buffer = new Buffer();
+        if (!queue.pop(buffer)) return null;
+        return new String(buffer.buf(), 0, buffer.count(), StandardCharsets.UTF_8);
+    }
+
+    private String peek(RawQueue queue) throws IOException {
+        Buffer buffer = new Buffer();
+        if (!queue.peek(buffer)) return null;
+        return new String(buffer.buf(), 0, buffer.count(), StandardCharsets.UTF_8);
+    }
+}
@@ -8,9 +8,11 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -158,6 +160,121 @@ public class LenientRawQueueTest {
     }
 
 
+    @Test
+    public void testChecksumSkipsOnlyCorruptedPayload() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            if (mode == StorageMode.DIRECT && !DirectIo.isSupported()) continue;
+            File dir = temp.newFolder();
+            LenientRawQueue queue = new LenientRawQueue(new DiskRawQueue(dir.toPath(), 512 * 121,
+                    new DiskRawQueueOptions().setChecksum(true).setStorageMode(mode)));
+
+            for (int i = 0; i < 20; i++)
+                push(queue, "test" + (char) ('a' + i));
+
+            //each record has 12 bytes of overhead plus 5 of payload
+            corrupt(new File(dir, "data00"), 17 * 5 + 14);
+
+            for (int i = 0; i < 20; i++) {
+                if (i == 5) continue;
+                assertThat(pop(queue)).isEqualTo("test" + (char) ('a' + i));
+            }
+            assertThat(pop(queue)).isNull();
+            assertBytesAndCount(queue, 17 * 20, 0);
+            assertThat(dir.list()).containsOnly("state", "data00");
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testChecksumResynchronizesAfterCorruptedHeader() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            if (mode == StorageMode.DIRECT && !DirectIo.isSupported()) continue;
+            File dir = temp.newFolder();
+            LenientRawQueue queue = new LenientRawQueue(new DiskRawQueue(dir.toPath(), 512 * 121,
+                    new DiskRawQueueOptions().setChecksum(true).setStorageMode(mode)));
+
+            for (int i = 0; i < 20; i++)
+                push(queue, "test" + (char) ('a' + i));
+
+            //damage the size field of the 4th record
+            corrupt(new File(dir, "data00"), 17 * 3 + 5);
+
+            for (int i = 0; i < 20; i++) {
+                if (i == 3) continue;
+                assertThat(pop(queue)).isEqualTo("test" + (char) ('a' + i));
+            }
+            assertThat(pop(queue)).isNull();
+            assertThat(queue.count()).isEqualTo(0);
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testChecksumRecountsRecordsAfterDamageSpanningSeveral() throws Exception {
+        File dir = temp.getRoot();
+        LenientRawQueue queue = new LenientRawQueue(new DiskRawQueue(dir.toPath(), 512 * 121,
+                new DiskRawQueueOptions().setChecksum(true)));
+
+        for (int i = 0; i < 20; i++)
+            push(queue, "test" + (char) ('a' + i));
+
+        //wipes the 4th to the 6th record, markers included
+        for (int i = 17 * 3; i < 17 * 6; i++)
+            corrupt(new File(dir, "data00"), i);
+
+        for (int i = 0; i < 3; i++)
+            assertThat(pop(queue)).isEqualTo("test" + (char) ('a' + i));
+        assertThat(queue.count()).isEqualTo(17);
+        assertThat(pop(queue)).isEqualTo("testg");
+        assertThat(queue.count()).isEqualTo(13);
+        for (int i = 7; i < 20; i++)
+            assertThat(pop(queue)).isEqualTo("test" + (char) ('a' + i));
+        assertThat(pop(queue)).isNull();
+        assertThat(queue.count()).isEqualTo(0);
+        queue.close();
+    }
+
+    @Test
+    public void testChecksumSkipsDamagedTailOfFile() throws Exception {
+        LenientRawQueue queue = new LenientRawQueue(new DiskRawQueue(temp.getRoot().toPath(), 512,
+                new DiskRawQueueOptions().setChecksum(true)));
+
+        String s = Strings.repeat("a", 512);
+        for (int i = 0; i < 3; i++)
+            push(queue, s);
+
+        //damages the only record of the first file, losing it entirely
+        corrupt(new File(temp.getRoot(), "data00"), 100);
+
+        for (int i = 0; i < 2; i++)
+            assertThat(pop(queue)).isEqualTo(s);
+        assertThat(pop(queue)).isNull();
+        assertThat(temp.getRoot().list()).containsOnly("state");
+    }
+
+    @Test
+    public void testChecksumKeepsFormatOfExistingFile() throws Exception {
+        DiskRawQueue plain = new DiskRawQueue(temp.getRoot().toPath(), 512 * 121);
+        push(plain, "abc");
+        plain.close();
+
+        LenientRawQueue queue = new LenientRawQueue(new DiskRawQueue(temp.getRoot().toPath(), 512 * 121,
+                new DiskRawQueueOptions().setChecksum(true)));
+        push(queue, "def");
+        assertBytesAndCount(queue, 14, 2);
+        assertThat(pop(queue)).isEqualTo("abc");
+        assertThat(pop(queue)).isEqualTo("def");
+    }
+
+    private void corrupt(File file, long position) throws IOException {
+        try (RandomAccessFile rand = new RandomAccessFile(file, "rw")) {
+            rand.seek(position);
+            int value = rand.read();
+            rand.seek(position);
+            rand.write(value ^ 0x55);
+        }
+    }
+
     @Test
     public void testAbleToRecoverOnDirectoryDelete() throws Exception {
         LenientRawQueue queue = new LenientRawQueue(new DiskRawQueue(temp.getRoot().toPath(), 512));
@@ -225,7 +342,115 @@ public class LenientRawQueueTest {
         assertThat(queue.count()).isEqualTo(count);
     }
 
-    private void push(LenientRawQueue queue, String s) throws IOException {
+    @Test
+    public void testRetriesOnlyTheRestOfAPartiallyWrittenBatch() throws Exception {
+        FlakyQueue flaky = new FlakyQueue(3);
+        LenientRawQueue queue = new LenientRawQueue(flaky);
+
+        BufferList batch = new BufferList();
+        for (int i = 0; i < 6; i++)
+            batch.add().write().write(("test" + i).getBytes(StandardCharsets.UTF_8));
+        queue.pushBatch(batch);
+
+        assertThat(flaky.count()).isEqualTo(6);
+        BufferList target = new BufferList();
+        assertThat(queue.drainTo(target, 10, Long.MAX_VALUE)).isEqualTo(6);
+        for (int i = 0; i < 6; i++)
+            assertThat(new String(target.get(i).toArray(), StandardCharsets.UTF_8)).isEqualTo("test" + i);
+    }
+
+    @Test
+    public void testReportsRecordsWrittenBeforeGivingUp() throws Exception {
+        FlakyQueue flaky = new FlakyQueue(2);
+        flaky.failures = 2;
+        LenientRawQueue queue = new LenientRawQueue(flaky);
+
+        BufferList batch = new BufferList();
+        for (int i = 0; i < 6; i++)
+            batch.add().write().write(("test" + i).getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> queue.pushBatch(batch))
+                .isInstanceOf(PartialBatchException.class)
+                .satisfies(e -> assertThat(((PartialBatchException) e).written()).isEqualTo(4));
+        assertThat(flaky.count()).isEqualTo(4);
+    }
+
+    private static class FlakyQueue implements RawQueue {
+        //only implements what RawQueue requires, batches go through its default methods
+        private final ArrayDeque<byte[]> records = new ArrayDeque<>();
+        private final int failEvery;
+        private int failures = 1;
+        private int pushes;
+
+        private FlakyQueue(int failEvery) {
+            this.failEvery = failEvery;
+        }
+
+        @Override
+        public void reopen() {
+        }
+
+        @Override
+        public long bytes() {
+            return 0;
+        }
+
+        @Override
+        public long count() {
+            return records.size();
+        }
+
+        @Override
+        public long remainingBytes() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public long remainingCount() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public void touch() {
+        }
+
+        @Override
+        public void clear() {
+            records.clear();
+        }
+
+        @Override
+        public boolean pop(Buffer buffer) {
+            if (!peek(buffer)) return false;
+            records.poll();
+            return true;
+        }
+
+        @Override
+        public boolean peek(Buffer buffer) {
+            byte[] record = records.peek();
+            if (record == null) return false;
+            buffer.setCount(record.length, false);
+            System.arraycopy(record, 0, buffer.buf(), 0, record.length);
+            return true;
+        }
+
+        @Override
+        public void push(Buffer buffer) throws IOException {
+            if (++pushes % (failEvery + 1) == 0 && failures-- > 0)
+                throw new IOException("failing push");
+            records.add(buffer.toArray());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void push(RawQueue queue, String s) throws IOException {
         queue.push(new Buffer(s.getBytes(StandardCharsets.UTF_8)));
     }
 
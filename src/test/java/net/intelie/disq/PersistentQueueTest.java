@@ -6,6 +6,10 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -49,6 +53,54 @@ public class PersistentQueueTest {
         assertThat(queue.peek()).isNull();
     }
 
+    @Test
+    public void testPushAll() throws Exception {
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+        PersistentQueue<Object> queue = new PersistentQueue<>(new InternalQueue(bq),
+                new SerializerPool<>(GsonSerializer.make(), 32, 1 << 16));
+
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            batch.add("test" + i);
+
+        long flushes = bq.flushCount();
+        queue.pushAll(batch);
+        queue.pushAll(Collections.emptyList());
+        assertThat(bq.flushCount() - flushes).isEqualTo(1);
+        assertThat(queue.count()).isEqualTo(20);
+
+        for (int i = 0; i < 20; i++)
+            assertThat(queue.pop()).isEqualTo("test" + i);
+        assertThat(queue.pop()).isNull();
+    }
+
+    @Test
+    public void testPopBatch() throws Exception {
+        DiskRawQueue bq = new DiskRawQueue(temp.getRoot().toPath(), 1000);
+        PersistentQueue<Object> queue = new PersistentQueue<>(new InternalQueue(bq, 1000),
+                new SerializerPool<>(GsonSerializer.make(), 32, 1 << 16));
+
+        for (int i = 0; i < 5; i++)
+            queue.fallbackQueue().push(new Buffer(("\"fallback" + i + "\"").getBytes(StandardCharsets.UTF_8)));
+        for (int i = 0; i < 20; i++)
+            queue.push("test" + i);
+
+        List<Object> target = new ArrayList<>();
+        assertThat(queue.popBatch(target, 10, Long.MAX_VALUE)).isEqualTo(10);
+        assertThat(queue.popBatch(target, 100, Long.MAX_VALUE)).isEqualTo(15);
+        assertThat(queue.popBatch(target, 100, Long.MAX_VALUE)).isEqualTo(0);
+
+        assertThat(target).hasSize(25);
+        for (int i = 0; i < 5; i++)
+            assertThat(target.get(i)).isEqualTo("fallback" + i);
+        for (int i = 0; i < 20; i++)
+            assertThat(target.get(i + 5)).isEqualTo("test" + i);
+
+        queue.push("again");
+        queue.setPaused(true);
+        assertThat(queue.popBatch(target, 100, Long.MAX_VALUE)).isEqualTo(0);
+    }
+
     @Test
     public void notYouCanPushNulls() throws Exception {
         //you couldn't in an earlier version
@@ -6,8 +6,10 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -93,6 +95,106 @@ public class StateFileTest {
         assertThreeFirst(state, 1, 2, 50, 82, 1, 83, 0, -1, 2);
     }
 
+    @Test
+    public void testVersionedLayoutSaveAndReopen() throws Exception {
+        state = new StateFile(statePath.toPath(), false, 10);
+        exampleData(state);
+        state.flush();
+        state.close();
+
+        assertThat(statePath.length()).isEqualTo(StateFile.HEADER_SIZE + 10 * 4);
+        DataInputStream data = new DataInputStream(new FileInputStream(statePath));
+        assertThat(data.readInt()).isEqualTo(StateFile.MAGIC);
+        assertThat(data.readInt()).isEqualTo(StateFile.VERSION);
+        assertThat(data.readInt()).isEqualTo(10);
+
+        state = new StateFile(statePath.toPath(), false, 10);
+        assertThat(state.getMaxFiles()).isEqualTo(10);
+        assertThreeFirst(state, 1, 2, 50, 82, 1, 83, 0, -1, 2);
+    }
+
+    @Test
+    public void testKeepsStoredLayoutWhileNotEmpty() throws Exception {
+        exampleData(state);
+        state.close();
+
+        state = new StateFile(statePath.toPath(), false, 10);
+        assertThat(state.getMaxFiles()).isEqualTo(StateFile.MAX_FILES);
+        assertThreeFirst(state, 1, 2, 50, 82, 1, 83, 0, -1, 2);
+        state.addWriteCount(1);
+        state.close();
+        assertThat(statePath.length()).isEqualTo(StateFile.EXPECTED_SIZE);
+    }
+
+    @Test
+    public void testSwitchesLayoutWhenEmpty() throws Exception {
+        exampleData(state);
+        state.addReadCount(26);
+        state.close();
+
+        state = new StateFile(statePath.toPath(), false, 1000);
+        assertThat(state.getMaxFiles()).isEqualTo(1000);
+        assertThat(state.getWriteFile()).isEqualTo(0);
+        state.close();
+        assertThat(statePath.length()).isEqualTo(StateFile.HEADER_SIZE + 1000 * 4);
+
+        state = new StateFile(statePath.toPath(), false);
+        assertThat(state.getMaxFiles()).isEqualTo(StateFile.MAX_FILES);
+        state.close();
+        assertThat(statePath.length()).isEqualTo(StateFile.EXPECTED_SIZE);
+
+        state = new StateFile(statePath.toPath(), true, 1000);
+        assertThat(state.getMaxFiles()).isEqualTo(StateFile.MAX_FILES);
+    }
+
+    @Test
+    public void testReadSkipSwitchesToVersionedLayout() throws Exception {
+        state.addWriteCount(0);
+        state.addWriteCount(0);
+        state.addWrittenBytes(40);
+        state.addReadCount(0);
+        assertThat(state.getReadSkip()).isEqualTo(1);
+        state.close();
+        assertThat(statePath.length()).isEqualTo(StateFile.HEADER_SIZE + StateFile.MAX_FILES * 4);
+
+        state = new StateFile(statePath.toPath(), false);
+        assertThat(state.getMaxFiles()).isEqualTo(StateFile.MAX_FILES);
+        assertThat(state.getReadSkip()).isEqualTo(1);
+        assertThat(state.getBytes()).isEqualTo(40);
+        assertThat(state.getWritePosition()).isEqualTo(40);
+        assertThat(state.getCount()).isEqualTo(1);
+
+        state.addReadCount(40);
+        assertThat(state.getReadSkip()).isEqualTo(0);
+        assertThat(state.getReadPosition()).isEqualTo(40);
+    }
+
+    @Test
+    public void testReadsVersion2Layout() throws Exception {
+        try (DataOutputStream data = new DataOutputStream(new FileOutputStream(statePath))) {
+            data.writeInt(StateFile.MAGIC);
+            data.writeInt(2);
+            data.writeInt(10);
+            data.writeInt(1);
+            data.writeInt(2);
+            data.writeLong(50);
+            data.writeLong(82);
+            data.writeLong(1);
+            data.writeLong(83);
+            data.writeInt(0);
+            data.writeInt(-1);
+            data.writeInt(2);
+            for (int i = 3; i < 10; i++)
+                data.writeInt(0);
+        }
+
+        state = new StateFile(statePath.toPath(), false, 10);
+        assertThreeFirst(state, 1, 2, 50, 82, 1, 83, 0, -1, 2);
+        assertThat(state.getReadSkip()).isEqualTo(0);
+        state.close();
+        assertThat(statePath.length()).isEqualTo(StateFile.HEADER_SIZE + 10 * 4);
+    }
+
     private void assertThreeFirst(StateFile state, int readFile, int writeFile, int readPosition, int writePosition, int count, int bytes, int c1, int c2, int c3) {
         assertThat(state.getReadFile()).isEqualTo(readFile);
         assertThat(state.getWriteFile()).isEqualTo(writeFile);
@@ -105,7 +207,7 @@ public class StateFileTest {
         assertThat(state.getFileCount(0)).isEqualTo(c1);
         assertThat(state.getFileCount(1)).isEqualTo(c2);
         assertThat(state.getFileCount(2)).isEqualTo(c3);
-        for (int i = 3; i < StateFile.MAX_FILES; i++) {
+        for (int i = 3; i < state.getMaxFiles(); i++) {
             assertThat(state.getFileCount(i)).isEqualTo(0);
         }
     }
@@ -150,6 +252,22 @@ public class StateFileTest {
 
     }
 
+    @Test
+    public void testFlushReadsLeavesUnflushedWritesOut() throws Exception {
+        state.addWriteCount(10);
+        state.addWriteCount(20);
+        state.flush();
+        state.addReadCount(10);
+        state.addWriteCount(30);
+        state.flushReads();
+
+        assertThat(state.getUnflushedCount()).isEqualTo(1);
+        assertThreeFirst(new StateFile(statePath.toPath(), true), 0, 0, 10, 30, 1, 30, 1, 0, 0);
+
+        state.flush();
+        assertThreeFirst(new StateFile(statePath.toPath(), true), 0, 0, 10, 60, 2, 60, 2, 0, 0);
+    }
+
     @Test
     public void assertAdvanceWrite() throws Exception {
         state.addWriteCount(42);
@@ -201,6 +319,25 @@ public class StateFileTest {
         assertThat(state.getFileCount(1)).isEqualTo(0);
     }
 
+    @Test
+    public void keepsWhereFullFilesEnd() throws Exception {
+        state.keepFileEnds();
+        state.addWriteCount(42);
+        state.advanceWriteFile();
+        state.addWriteCount(10);
+        state.close();
+
+        assertThat(statePath.length()).isEqualTo(StateFile.HEADER_SIZE + StateFile.MAX_FILES * 12);
+        state = new StateFile(statePath.toPath(), false);
+        assertThat(state.getReadLimit()).isEqualTo(42);
+        assertThat(state.getFileBytes(0, 4096)).isEqualTo(42);
+        assertThat(state.getFileBytes(1, 4096)).isEqualTo(4096);
+
+        state.advanceReadFile(42);
+        assertThat(state.getFileBytes(0, 4096)).isEqualTo(4096);
+        assertThat(state.getReadLimit()).isEqualTo(10);
+    }
+
     @Test
     public void testIsInUse() throws Exception {
         for (int i = 0; i < 10; i++)
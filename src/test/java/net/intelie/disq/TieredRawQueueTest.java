@@ -0,0 +1,156 @@
+package net.intelie.disq;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TieredRawQueueTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testKeepsRecordsInMemoryWhileTheyFit() throws Exception {
+        TieredRawQueue queue = new TieredRawQueue(1000, new DiskRawQueue(temp.getRoot().toPath(), 1000000));
+
+        for (int i = 0; i < 10; i++)
+            push(queue, "test" + i);
+
+        assertThat(queue.memoryQueue().count()).isEqualTo(10);
+        assertThat(queue.diskQueue().count()).isEqualTo(0);
+        assertThat(queue.count()).isEqualTo(10);
+        assertThat(queue.spills()).isEqualTo(0);
+
+        assertThat(peek(queue)).isEqualTo("test0");
+        for (int i = 0; i < 10; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+        assertThat(pop(queue)).isNull();
+        queue.close();
+    }
+
+    @Test
+    public void testSpillsUnderPressureKeepingOrder() throws Exception {
+        TieredRawQueue queue = new TieredRawQueue(100, new DiskRawQueue(temp.getRoot().toPath(), 1000000));
+
+        for (int i = 0; i < 20; i++)
+            push(queue, "test" + i);
+        assertThat(queue.spills()).isEqualTo(1);
+        assertThat(queue.memoryQueue().count()).isEqualTo(0);
+        assertThat(queue.diskQueue().count()).isEqualTo(20);
+
+        for (int i = 0; i < 5; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+
+        //new records keep going to disk while older ones are still there
+        push(queue, "test20");
+        assertThat(queue.memoryQueue().count()).isEqualTo(0);
+        for (int i = 5; i < 21; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+
+        //and back to memory once disk is drained
+        push(queue, "test21");
+        assertThat(queue.memoryQueue().count()).isEqualTo(1);
+        assertThat(pop(queue)).isEqualTo("test21");
+        assertThat(pop(queue)).isNull();
+        queue.close();
+    }
+
+    @Test
+    public void testDrainToCrossesTiers() throws Exception {
+        TieredRawQueue queue = new TieredRawQueue(100, new DiskRawQueue(temp.getRoot().toPath(), 1000000));
+        for (int i = 0; i < 20; i++)
+            push(queue, "test" + i);
+        for (int i = 0; i < 20; i++)
+            assertThat(pop(queue)).isEqualTo("test" + i);
+        for (int i = 0; i < 3; i++)
+            push(queue, "test" + i);
+
+        BufferList batch = new BufferList();
+        assertThat(queue.drainTo(batch, 10, Long.MAX_VALUE)).isEqualTo(3);
+        for (int i = 0; i < 3; i++)
+            assertThat(new String(batch.get(i).toArray(), StandardCharsets.UTF_8)).isEqualTo("test" + i);
+        queue.close();
+    }
+
+    @Test
+    public void testSpillsOnClose() throws Exception {
+        Path dir = temp.getRoot().toPath();
+        TieredRawQueue queue = new TieredRawQueue(1000, new DiskRawQueue(dir, 1000000));
+        for (int i = 0; i < 10; i++)
+            push(queue, "test" + i);
+        assertThat(queue.diskQueue().count()).isEqualTo(0);
+        queue.close();
+
+        TieredRawQueue reopened = new TieredRawQueue(1000, new DiskRawQueue(dir, 1000000));
+        assertThat(reopened.count()).isEqualTo(10);
+        for (int i = 0; i < 10; i++)
+            assertThat(pop(reopened)).isEqualTo("test" + i);
+        assertThat(pop(reopened)).isNull();
+        reopened.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testDiskPushesRunOutsideTheLock() throws Exception {
+        CountDownLatch together = new CountDownLatch(2);
+        DiskRawQueue disk = new DiskRawQueue(temp.getRoot().toPath(), 1000000) {
+            @Override
+            public void push(Buffer buffer) throws IOException {
+                together.countDown();
+                try {
+                    together.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.push(buffer);
+            }
+        };
+        TieredRawQueue queue = new TieredRawQueue(4, disk);
+
+        Thread other = new Thread(() -> {
+            try {
+                push(queue, "test0");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        other.start();
+        push(queue, "test1");
+        other.join();
+
+        assertThat(together.getCount()).isEqualTo(0);
+        assertThat(queue.diskQueue().count()).isEqualTo(2);
+        assertThat(queue.memoryQueue().count()).isEqualTo(0);
+        queue.close();
+    }
+
+    @Test
+    public void testBuilderCreatesTiers() throws Exception {
+        TieredRawQueue queue = Disq.builder().setDirectory(temp.getRoot().toPath()).setMemoryTierBytes(1000).buildTieredRawQueue();
+        push(queue, "test");
+        assertThat(pop(queue)).isEqualTo("test");
+        queue.close();
+    }
+
+    private void push(RawQueue queue, String s) throws IOException {
+        queue.push(new Buffer(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String pop(RawQueue queue) throws IOException {
+        Buffer buffer = new Buffer();
+        if (!queue.pop(buffer)) return null;
+        return new String(buffer.buf(), 0, buffer.count(), StandardCharsets.UTF_8);
+    }
+
+    private String peek(RawQueue queue) throws IOException {
+        Buffer buffer = new Buffer();
+        if (!queue.peek(buffer)) return null;
+        return new String(buffer.buf(), 0, buffer.count(), StandardCharsets.UTF_8);
+    }
+}